@@ -14,13 +14,18 @@
 package brave.propagation.tracecontext;
 
 import brave.internal.codec.HexCodec;
+import brave.propagation.B3Propagation;
+import brave.propagation.B3SingleFormat;
 import brave.propagation.Propagation;
 import brave.propagation.TraceContext;
 import brave.propagation.TraceContext.Extractor;
 import brave.propagation.TraceContext.Injector;
 import brave.propagation.TraceContextOrSamplingFlags;
+import brave.propagation.tracecontext.TraceContextPropagation.BatchExtractor;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import org.openjdk.jmh.annotations.Benchmark;
@@ -29,6 +34,8 @@ import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.Warmup;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
@@ -44,6 +51,16 @@ public class TraceContextPropagationBenchmarks {
   static final Propagation<String> tc = TraceContextPropagation.get();
   static final Injector<Map<String, String>> tcInjector = tc.injector(Map::put);
   static final Extractor<Map<String, String>> tcExtractor = tc.extractor(Map::get);
+  static final Extractor<Map<String, String>> tcLazyExtractor = TraceContextPropagation
+    .newFactoryBuilder().lazyTracestate(true).build().get().extractor(Map::get);
+  static final Extractor<Map<String, String>> tcCachedExtractor = TraceContextPropagation
+    .newFactoryBuilder().tracestateCacheSize(256).build().get().extractor(Map::get);
+  static final Extractor<Map<String, String>> tcEarlyExitExtractor = TraceContextPropagation
+    .newFactoryBuilder().tracestateEarlyExit(true).build().get().extractor(Map::get);
+  static final Extractor<Map<String, String>> tcB3FallbackExtractor = TraceContextPropagation
+    .newFactoryBuilder().b3Fallback(true).build().get().extractor(Map::get);
+  static final Extractor<Map<String, String>> b3Extractor =
+    B3Propagation.get().extractor(Map::get);
 
   static final TraceContext context = TraceContext.newBuilder()
     .traceIdHigh(HexCodec.lowerHexToUnsignedLong("67891233abcdef01"))
@@ -52,36 +69,159 @@ public class TraceContextPropagationBenchmarks {
     .sampled(true)
     .build();
 
-  // TODO: add tracestate examples which prefer the b3 entry
+  // Extraction needs both headers. With an empty tracestate, trace context is from traceparent.
   static final Map<String, String> incoming = new LinkedHashMap<String, String>() {
     {
       put("traceparent", TraceparentFormat.get().write(context));
+      put("tracestate", "");
     }
   };
 
   static final Map<String, String> incomingPadded = new LinkedHashMap<String, String>() {
     {
       put("traceparent", TraceparentFormat.get().write(context.toBuilder().traceIdHigh(0).build()));
+      put("tracestate", "");
     }
   };
 
+  // Our entry is in the middle, so extraction also has to remove it from the other entries
+  static final Map<String, String> incomingTracestate = new LinkedHashMap<String, String>() {
+    {
+      put("traceparent", TraceparentFormat.get().write(context));
+      put("tracestate", "rojo=00f067aa0ba902b7,b3=" + B3SingleFormat.writeB3SingleFormat(context)
+        + ",congo=t61rcWkgMzE,tenant1@vendor=00f067aa0ba902b7-1");
+    }
+  };
+
+  static final TraceContext extractedTracestate =
+    tcExtractor.extract(incomingTracestate).context();
+
   static final Map<String, String> incomingMalformed = new LinkedHashMap<String, String>() {
     {
       put("traceparent", "b970dafd-0d95-40aa-95d8-1d8725aebe40"); // not ok
+      put("tracestate", "");
     }
   };
 
   static final Map<String, String> nothingIncoming = Collections.emptyMap();
 
+  // From a caller that doesn't send trace context headers
+  static final Map<String, String> incomingB3Single = new LinkedHashMap<String, String>() {
+    {
+      put("b3", B3SingleFormat.writeB3SingleFormat(context));
+    }
+  };
+
+  static final Map<String, String> incomingB3Multi = new LinkedHashMap<String, String>() {
+    {
+      put("X-B3-TraceId", context.traceIdString());
+      put("X-B3-SpanId", context.spanIdString());
+      put("X-B3-Sampled", "1");
+    }
+  };
+
+  static final TraceparentFormat traceparentFormat = TraceparentFormat.get();
+  static final String traceparent = incoming.get("traceparent");
+  static final String traceparentPadded = incomingPadded.get("traceparent");
+  static final byte[] traceparentBytes = traceparentFormat.writeAsBytes(context);
+
   @Benchmark public void inject() {
     Map<String, String> carrier = new LinkedHashMap<>();
     tcInjector.inject(context, carrier);
   }
 
+  /** Like a server that makes many client requests, other tracestate entries are rendered once. */
+  @Benchmark public void inject_tracestate() {
+    Map<String, String> carrier = new LinkedHashMap<>();
+    tcInjector.inject(extractedTracestate, carrier);
+  }
+
   @Benchmark public TraceContextOrSamplingFlags extract() {
     return tcExtractor.extract(incoming);
   }
 
+  @Benchmark public TraceContextOrSamplingFlags extract_tracestate() {
+    return tcExtractor.extract(incomingTracestate);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract_tracestate_lazy() {
+    return tcLazyExtractor.extract(incomingTracestate);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract_tracestate_earlyExit() {
+    return tcEarlyExitExtractor.extract(incomingTracestate);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract_tracestate_cached() {
+    return tcCachedExtractor.extract(incomingTracestate);
+  }
+
+  /** Shows the cost of lazy parsing when the other entries are propagated after all. */
+  @Benchmark public void extract_tracestate_lazy_inject() {
+    TraceContext extracted = tcLazyExtractor.extract(incomingTracestate).context();
+    Map<String, String> carrier = new LinkedHashMap<>();
+    tcInjector.inject(extracted, carrier);
+  }
+
+  @Benchmark public void extract_tracestate_inject() {
+    TraceContext extracted = tcExtractor.extract(incomingTracestate).context();
+    Map<String, String> carrier = new LinkedHashMap<>();
+    tcInjector.inject(extracted, carrier);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract_b3Fallback_tracestate() {
+    return tcB3FallbackExtractor.extract(incomingTracestate);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract_b3Fallback_b3Single() {
+    return tcB3FallbackExtractor.extract(incomingB3Single);
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract_b3Fallback_b3Multi() {
+    return tcB3FallbackExtractor.extract(incomingB3Multi);
+  }
+
+  /** Compare to {@link #extract_b3Fallback_b3Single()} */
+  @Benchmark public TraceContextOrSamplingFlags extract_chained_b3Single() {
+    return extractChained(incomingB3Single);
+  }
+
+  /** Compare to {@link #extract_b3Fallback_b3Multi()} */
+  @Benchmark public TraceContextOrSamplingFlags extract_chained_b3Multi() {
+    return extractChained(incomingB3Multi);
+  }
+
+  /** Trying each propagation in turn, as done without {@code b3Fallback}. */
+  static TraceContextOrSamplingFlags extractChained(Map<String, String> request) {
+    TraceContextOrSamplingFlags result = tcExtractor.extract(request);
+    if (result != TraceContextOrSamplingFlags.EMPTY) return result;
+    return b3Extractor.extract(request);
+  }
+
+  /** A consumer batch, where records sent together share their trace context headers. */
+  static final List<Map<String, String>> batch = new ArrayList<Map<String, String>>();
+  static final TraceContextOrSamplingFlags[] batchResults = new TraceContextOrSamplingFlags[100];
+  static final BatchExtractor<Map<String, String>> tcBatchExtractor =
+    ((TraceContextPropagation) tc).extractor(Map::get);
+
+  static {
+    for (int i = 0; i < batchResults.length; i++) {
+      batch.add(new LinkedHashMap<String, String>(incomingTracestate));
+    }
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags[] extract_batch() {
+    for (int i = 0, length = batch.size(); i < length; i++) {
+      batchResults[i] = tcExtractor.extract(batch.get(i));
+    }
+    return batchResults;
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags[] extractAll_batch() {
+    tcBatchExtractor.extractAll(batch, batchResults);
+    return batchResults;
+  }
+
   @Benchmark public TraceContextOrSamplingFlags extract_padded() {
     return tcExtractor.extract(incomingPadded);
   }
@@ -94,6 +234,49 @@ public class TraceContextPropagationBenchmarks {
     return tcExtractor.extract(incomingMalformed);
   }
 
+  @Benchmark public TraceContext parse_traceparent() {
+    return traceparentFormat.parse(traceparent);
+  }
+
+  @Benchmark public TraceContext parse_traceparent_padded() {
+    return traceparentFormat.parse(traceparentPadded);
+  }
+
+  @Benchmark public TraceContext parse_traceparent_bytes() {
+    return traceparentFormat.parse(traceparentBytes, 0, traceparentBytes.length);
+  }
+
+  /** Alternates between two different values, so that every call misses the last value. */
+  @State(Scope.Thread)
+  public static class DifferentTraceparents {
+    final String[] values = {traceparent, traceparentPadded};
+    int i;
+
+    String next() {
+      return values[i++ & 1];
+    }
+  }
+
+  /** Alternates between two equal values, so every call compares content, not identity. */
+  @State(Scope.Thread)
+  public static class EqualTraceparents extends DifferentTraceparents {
+    {
+      values[1] = new String(traceparent.toCharArray());
+    }
+  }
+
+  @Benchmark public TraceContext parseOrLast_traceparent_hit() {
+    return traceparentFormat.parseOrLast(traceparent);
+  }
+
+  @Benchmark public TraceContext parseOrLast_traceparent_hit_equal(EqualTraceparents in) {
+    return traceparentFormat.parseOrLast(in.next());
+  }
+
+  @Benchmark public TraceContext parseOrLast_traceparent_miss(DifferentTraceparents in) {
+    return traceparentFormat.parseOrLast(in.next());
+  }
+
   // Convenience main entry-point
   public static void main(String[] args) throws RunnerException {
     Options opt = new OptionsBuilder()
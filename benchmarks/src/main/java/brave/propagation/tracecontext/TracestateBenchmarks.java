@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.propagation.tracecontext.TracestateFormat.ScanResult;
+import brave.propagation.tracecontext.TracestateKeyMatcher.TracestateIndex;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Reading and changing entries other than ours, such as done by samplers or routing layers. */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TracestateBenchmarks {
+  static final String TRACESTATE =
+    "rojo=00f067aa0ba902b7,b3=67891233abcdef012345678912345678-463ac35c9f6413ad-1,"
+      + "congo=t61rcWkgMzE,tenant1@vendor=00f067aa0ba902b7-1";
+  static final Tracestate tracestate =
+    Tracestate.createUnparsed(TracestateFormat.get(), TRACESTATE);
+  static final TracestateKeyMatcher keyMatcher =
+    TracestateKeyMatcher.create(Arrays.asList("rojo", "tenant1@vendor"));
+  static final Tracestate indexedTracestate = Tracestate.createUnparsed(TracestateFormat.get(),
+    TRACESTATE, scanIndex(TRACESTATE));
+
+  static final Tracestate.EntryHandler<String> VALUE_LENGTH =
+    new Tracestate.EntryHandler<String>() {
+      @Override public boolean onEntry(String key, CharSequence buffer, int beginKey, int endKey,
+        int beginValue, int endValue) {
+        return key.length() != endKey - beginKey; // stop when the key is found
+      }
+    };
+
+  @Benchmark public boolean containsKey() {
+    return tracestate.containsKey("tenant1@vendor");
+  }
+
+  @Benchmark public CharSequence get() {
+    return tracestate.get("tenant1@vendor");
+  }
+
+  @Benchmark public CharSequence get_indexed() {
+    return indexedTracestate.get("tenant1@vendor");
+  }
+
+  /** Compare to {@link #scan()} for the cost added when keys are registered with the factory. */
+  @Benchmark public Object index() {
+    return scanIndex(TRACESTATE);
+  }
+
+  @Benchmark public long scan() {
+    return TracestateFormat.get().scan(TRACESTATE, false);
+  }
+
+  static TracestateIndex scanIndex(String tracestate) {
+    ScanResult found = new ScanResult(keyMatcher);
+    TracestateFormat.get().scan(tracestate, false, found);
+    return keyMatcher.index(tracestate, found.valueOffsets);
+  }
+
+  @Benchmark public void forEach() {
+    tracestate.forEach(VALUE_LENGTH, "tenant1@vendor");
+  }
+
+  @Benchmark public Tracestate put() {
+    return tracestate.put("congo", "t61rcWkgMzF");
+  }
+
+  @Benchmark public Tracestate remove() {
+    return tracestate.remove("congo");
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + TracestateBenchmarks.class.getSimpleName())
+      .build();
+
+    new Runner(opt).run();
+  }
+}
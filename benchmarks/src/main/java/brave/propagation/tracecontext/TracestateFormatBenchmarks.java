@@ -13,6 +13,9 @@
  */
 package brave.propagation.tracecontext;
 
+import brave.internal.codec.EntrySplitter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import org.openjdk.jmh.annotations.Benchmark;
@@ -29,7 +32,8 @@ import org.openjdk.jmh.runner.options.OptionsBuilder;
 
 /**
  * This mainly shows the impact of much slower approaches, such as regular expressions. However,
- * this is also used to help us evaluate efficiencies beyond that.
+ * this is also used to help us evaluate efficiencies beyond that. See the README for a SWAR
+ * classifier that was measured here and rejected.
  */
 @Measurement(iterations = 5, time = 1)
 @Warmup(iterations = 10, time = 1)
@@ -38,16 +42,47 @@ import org.openjdk.jmh.runner.options.OptionsBuilder;
 @OutputTimeUnit(TimeUnit.MICROSECONDS)
 public class TracestateFormatBenchmarks {
   static final TracestateFormat tracestate = new TracestateFormat("b3", true);
-  static final Pattern KEY_PATTERN = Pattern.compile("^[a-z0-9_\\-*/]{1,256}$");
+  static final Pattern KEY_PATTERN = Pattern.compile("^[a-z0-9][a-z0-9_\\-*/@]{0,255}$");
   static final String VAL_CHAR =
     "[!\"#$%&'()*+\\-./0123456789:;<>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ\\[\\\\\\]^_`abcdefghijklmnopqrstuvwxyz{|}~]";
-  static final Pattern VALUE_PATTERN =
-    Pattern.compile("^( {0,255}" + VAL_CHAR + "|" + VAL_CHAR + VAL_CHAR + " {0,255})$");
+  // Up to 255 characters including space, followed by one that is not a space
+  static final Pattern VALUE_PATTERN = Pattern.compile(
+    "^[ " + VAL_CHAR.substring(1, VAL_CHAR.length() - 1) + "]{0,255}" + VAL_CHAR + "$");
 
-  static final String TRACESTATE_KEY_RANGE = "*-/0123456789@_abcdefghijklmnopqrstuvwxyz";
+  // starts with a number as the first character cannot be a symbol
+  static final String TRACESTATE_KEY_RANGE = "0123456789*-/@_abcdefghijklmnopqrstuvwxyz";
   static final String TRACESTATE_VALUE_RANGE =
     " !\"#$%&'()*+-./0123456789:;<>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[\\]^_`abcdefghijklmnopqrstuvwxyz{|}~";
 
+  // Longest key and value, from the range of valid characters
+  static final String LONG_KEY = repeat(TRACESTATE_KEY_RANGE, 256);
+  static final String LONG_VALUE = repeat(TRACESTATE_VALUE_RANGE.replace(" ", ""), 256);
+
+  // A long header with many entries, as seen when several systems add their state. Keys use the
+  // multi-tenant format, and the total length is close to the 512 character limit.
+  static final String LONG_TRACESTATE, LONG_TRACESTATE_B3_FIRST;
+  static final int[] LONG_TRACESTATE_OFFSETS; // beginKey, endKey, beginValue, endValue ...
+
+  static {
+    StringBuilder builder = new StringBuilder();
+    List<Integer> offsets = new ArrayList<Integer>();
+    for (int i = 0; i < 13; i++) {
+      if (i > 0) builder.append(',');
+      offsets.add(builder.length());
+      builder.append("tenant").append(i).append("@vendor");
+      offsets.add(builder.length());
+      builder.append('=');
+      offsets.add(builder.length());
+      builder.append("00f067aa0ba902b7-").append(i).append("-x");
+      offsets.add(builder.length());
+    }
+    LONG_TRACESTATE = builder.toString();
+    LONG_TRACESTATE_B3_FIRST =
+      "b3=67891233abcdef012345678912345678-463ac35c9f6413ad-1," + LONG_TRACESTATE;
+    LONG_TRACESTATE_OFFSETS = new int[offsets.size()];
+    for (int i = 0; i < offsets.size(); i++) LONG_TRACESTATE_OFFSETS[i] = offsets.get(i);
+  }
+
   @Benchmark public boolean validateKey_range_brave() {
     return tracestate.validateKey(TRACESTATE_KEY_RANGE, 0, TRACESTATE_KEY_RANGE.length());
   }
@@ -64,6 +99,81 @@ public class TracestateFormatBenchmarks {
     return VALUE_PATTERN.matcher(TRACESTATE_VALUE_RANGE).matches();
   }
 
+  @Benchmark public boolean validateKey_long_brave() {
+    return tracestate.validateKey(LONG_KEY, 0, LONG_KEY.length());
+  }
+
+  @Benchmark public boolean validateKey_long() {
+    return KEY_PATTERN.matcher(LONG_KEY).matches();
+  }
+
+  @Benchmark public boolean validateValue_long_brave() {
+    return tracestate.validateValue(LONG_VALUE, 0, LONG_VALUE.length());
+  }
+
+  @Benchmark public boolean validateValue_long() {
+    return VALUE_PATTERN.matcher(LONG_VALUE).matches();
+  }
+
+  @Benchmark public boolean validateEntries_long_brave() {
+    int[] offsets = LONG_TRACESTATE_OFFSETS;
+    for (int i = 0; i < offsets.length; i += 4) {
+      if (!tracestate.validateKey(LONG_TRACESTATE, offsets[i], offsets[i + 1])) return false;
+      if (!tracestate.validateValue(LONG_TRACESTATE, offsets[i + 2], offsets[i + 3])) return false;
+    }
+    return true;
+  }
+
+  @Benchmark public boolean validateEntries_long() {
+    int[] offsets = LONG_TRACESTATE_OFFSETS;
+    for (int i = 0; i < offsets.length; i += 4) {
+      CharSequence key = LONG_TRACESTATE.subSequence(offsets[i], offsets[i + 1]);
+      if (!KEY_PATTERN.matcher(key).matches()) return false;
+      CharSequence value = LONG_TRACESTATE.subSequence(offsets[i + 2], offsets[i + 3]);
+      if (!VALUE_PATTERN.matcher(value).matches()) return false;
+    }
+    return true;
+  }
+
+  /** How the header was parsed before {@link TracestateFormat#scan(String, boolean)}. */
+  @Benchmark public boolean split_long_brave() {
+    int[] indices = {-1, -1, -1, -1, -1, -1};
+    return ENTRY_SPLITTER.parse(VALIDATING_HANDLER, indices, LONG_TRACESTATE);
+  }
+
+  @Benchmark public long scan_long() {
+    return tracestate.scan(LONG_TRACESTATE, false);
+  }
+
+  @Benchmark public long scan_long_earlyExit() {
+    return tracestate.scan(LONG_TRACESTATE_B3_FIRST, true);
+  }
+
+  static final EntrySplitter ENTRY_SPLITTER = EntrySplitter.newBuilder()
+    .maxEntries(32)
+    .entrySeparator(',')
+    .trimOWSAroundEntrySeparator(true)
+    .keyValueSeparator('=')
+    .trimOWSAroundKeyValueSeparator(false)
+    .shouldThrow(true)
+    .build();
+
+  static final EntrySplitter.Handler<int[]> VALIDATING_HANDLER = new EntrySplitter.Handler<int[]>() {
+    @Override public boolean onEntry(int[] target, CharSequence buffer, int beginKey, int endKey,
+      int beginValue, int endValue) {
+      if (!tracestate.validateKey(buffer, beginKey, endKey)) return false;
+      if (!tracestate.validateValue(buffer, beginValue, endValue)) return false;
+      target[1] = beginKey; // placeholder for recording the offsets of our entry
+      return true;
+    }
+  };
+
+  static String repeat(String range, int length) {
+    StringBuilder builder = new StringBuilder(length);
+    while (builder.length() < length) builder.append(range);
+    return builder.substring(0, length);
+  }
+
   // Convenience main entry-point
   public static void main(String[] args) throws RunnerException {
     Options opt = new OptionsBuilder()
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.internal.codec.HexCodec;
+import brave.propagation.B3SingleFormat;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.TraceContextOrSamplingFlags;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Extracts and injects {@code tracestate} headers of the shapes seen in practice. Other entries
+ * come from several vendors, in simple and multi-tenant key formats. With 31 of them, the header is
+ * 510 characters, just under the 512 character limit of injection.
+ *
+ * <p>The full matrix takes a while. Narrow it with JMH options, such as {@code -p shape=MIDDLE}.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class TracestateScenarioBenchmarks {
+  public enum Shape {
+    /** Our entry is first, as it is after we inject. */
+    HEAD,
+    MIDDLE,
+    TAIL,
+    /** No entry of ours, so trace context is read from {@code traceparent}. */
+    ABSENT,
+    /** Our entry is in the middle, but not in B3 single format, so nothing is extracted. */
+    INVALID_ENTRY,
+    /** Our entry is first, but the last entry has an invalid key, so nothing is extracted. */
+    INVALID_OTHER
+  }
+
+  static final Propagation<String> tc = TraceContextPropagation.get();
+  static final Injector<Map<String, String>> tcInjector = tc.injector(Map::put);
+  static final Extractor<Map<String, String>> tcExtractor = tc.extractor(Map::get);
+
+  static final TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(HexCodec.lowerHexToUnsignedLong("67891233abcdef01"))
+    .traceId(HexCodec.lowerHexToUnsignedLong("2345678912345678"))
+    .spanId(HexCodec.lowerHexToUnsignedLong("463ac35c9f6413ad"))
+    .sampled(true)
+    .build();
+
+  /** Count of entries besides ours, up to the limit of 32 entries in total. */
+  @Param({"0", "1", "8", "31"})
+  public int otherEntries;
+
+  @Param
+  public Shape shape;
+
+  Map<String, String> incoming;
+  TraceContext extracted;
+
+  @Setup public void setup() {
+    List<String> entries = new ArrayList<String>();
+    for (int i = 0; i < otherEntries; i++) entries.add(otherEntry(i));
+
+    String thisEntry = "b3=" + B3SingleFormat.writeB3SingleFormat(context);
+    switch (shape) {
+      case HEAD:
+        entries.add(0, thisEntry);
+        break;
+      case MIDDLE:
+        entries.add(entries.size() / 2, thisEntry);
+        break;
+      case TAIL:
+        entries.add(thisEntry);
+        break;
+      case ABSENT:
+        break;
+      case INVALID_ENTRY:
+        entries.add(entries.size() / 2, "b3=00f067aa0ba902b7");
+        break;
+      case INVALID_OTHER:
+        if (entries.isEmpty()) {
+          entries.add("Ro0=00f067aa");
+        } else {
+          int last = entries.size() - 1;
+          entries.set(last, entries.get(last).toUpperCase());
+        }
+        entries.add(0, thisEntry);
+        break;
+      default:
+        throw new AssertionError(shape);
+    }
+
+    incoming = new LinkedHashMap<String, String>();
+    incoming.put("traceparent", TraceparentFormat.get().write(context));
+    incoming.put("tracestate", join(entries));
+
+    TraceContext maybeExtracted = tcExtractor.extract(incoming).context();
+    extracted = maybeExtracted != null ? maybeExtracted : context;
+  }
+
+  @Benchmark public TraceContextOrSamplingFlags extract() {
+    return tcExtractor.extract(incoming);
+  }
+
+  /** Like a server that makes many client requests, other entries are rendered once. */
+  @Benchmark public Map<String, String> inject() {
+    Map<String, String> carrier = new LinkedHashMap<String, String>();
+    tcInjector.inject(extracted, carrier);
+    return carrier;
+  }
+
+  /** Like a proxy, which renders the other entries of each request it forwards. */
+  @Benchmark public Map<String, String> extract_inject() {
+    TraceContext parent = tcExtractor.extract(incoming).context();
+    Map<String, String> carrier = new LinkedHashMap<String, String>();
+    tcInjector.inject(parent != null ? parent : context, carrier);
+    return carrier;
+  }
+
+  /** Entries of a few vendors, mixing simple and multi-tenant keys. */
+  static String otherEntry(int i) {
+    switch (i % 4) {
+      case 0:
+        return "ro" + i + "=00f067aa";
+      case 1:
+        return "t" + i + "@congo=t61rcW";
+      case 2:
+        return "dd" + i + "=s:1;o:rum";
+      default:
+        return "ot" + i + "=p:8;r:62";
+    }
+  }
+
+  static String join(List<String> entries) {
+    StringBuilder result = new StringBuilder();
+    for (String entry : entries) {
+      if (result.length() > 0) result.append(',');
+      result.append(entry);
+    }
+    return result.toString();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + TracestateScenarioBenchmarks.class.getSimpleName())
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext.netty;
+
+import brave.internal.codec.HexCodec;
+import brave.propagation.B3SingleFormat;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.tracecontext.TraceContextPropagation;
+import brave.propagation.tracecontext.TraceparentFormat;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.util.AsciiString;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Extracts from a request and injects into its response in a channel pipeline, as a proxy would.
+ * The "toString" benchmarks use the generic {@code Getter<R, String>} and {@code Setter<R, String>}
+ * for comparison.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class NettyTraceContextBenchmarks {
+  static final Propagation<String> tc = TraceContextPropagation.get();
+
+  static final TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(HexCodec.lowerHexToUnsignedLong("67891233abcdef01"))
+    .traceId(HexCodec.lowerHexToUnsignedLong("2345678912345678"))
+    .spanId(HexCodec.lowerHexToUnsignedLong("463ac35c9f6413ad"))
+    .sampled(true)
+    .build();
+  static final String traceparent = TraceparentFormat.get().write(context);
+  static final String tracestate = "rojo=00f067aa0ba902b7,b3="
+    + B3SingleFormat.writeB3SingleFormat(context) + ",congo=t61rcWkgMzE";
+
+  // Values decoded by HttpObjectDecoder are strings
+  static final HttpRequest request =
+    new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+
+  // Values decoded by HPACK are ASCII strings
+  static final Http2HeadersFrame http2Request = new DefaultHttp2HeadersFrame(
+    new DefaultHttp2Headers()
+      .method(HttpMethod.GET.asciiName())
+      .path(new AsciiString("/"))
+      .set(new AsciiString("traceparent"), new AsciiString(traceparent))
+      .set(new AsciiString("tracestate"), new AsciiString(tracestate)));
+
+  static {
+    request.headers().set("traceparent", traceparent).set("tracestate", tracestate);
+  }
+
+  final EmbeddedChannel http = new EmbeddedChannel(new HttpProxyHandler(
+    NettyTraceContext.extractor(tc),
+    NettyTraceContext.injector(tc)));
+
+  final EmbeddedChannel httpToString = new EmbeddedChannel(new HttpProxyHandler(
+    tc.extractor(HttpHeaders::get),
+    tc.injector(HttpHeaders::set)));
+
+  final EmbeddedChannel http2 = new EmbeddedChannel(new Http2ProxyHandler(
+    NettyTraceContext.http2Extractor(tc),
+    NettyTraceContext.http2Injector(tc)));
+
+  final EmbeddedChannel http2ToString = new EmbeddedChannel(new Http2ProxyHandler(
+    tc.extractor((headers, key) -> {
+      CharSequence value = headers.get(key);
+      return value != null ? value.toString() : null;
+    }),
+    tc.injector(Http2Headers::set)));
+
+  @Benchmark public Object http() {
+    return roundTrip(http, request);
+  }
+
+  @Benchmark public Object http_toString() {
+    return roundTrip(httpToString, request);
+  }
+
+  @Benchmark public Object http2() {
+    return roundTrip(http2, http2Request);
+  }
+
+  @Benchmark public Object http2_toString() {
+    return roundTrip(http2ToString, http2Request);
+  }
+
+  @TearDown public void close() {
+    http.finishAndReleaseAll();
+    httpToString.finishAndReleaseAll();
+    http2.finishAndReleaseAll();
+    http2ToString.finishAndReleaseAll();
+  }
+
+  static Object roundTrip(EmbeddedChannel channel, Object request) {
+    channel.writeInbound(request);
+    return channel.readOutbound();
+  }
+
+  static final class HttpProxyHandler extends ChannelInboundHandlerAdapter {
+    final Extractor<HttpHeaders> extractor;
+    final Injector<HttpHeaders> injector;
+
+    HttpProxyHandler(Extractor<HttpHeaders> extractor, Injector<HttpHeaders> injector) {
+      this.extractor = extractor;
+      this.injector = injector;
+    }
+
+    @Override public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      TraceContext parent = extractor.extract(((HttpRequest) msg).headers()).context();
+      DefaultHttpResponse response =
+        new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+      injector.inject(parent, response.headers());
+      ctx.write(response);
+    }
+  }
+
+  static final class Http2ProxyHandler extends ChannelInboundHandlerAdapter {
+    final Extractor<Http2Headers> extractor;
+    final Injector<Http2Headers> injector;
+
+    Http2ProxyHandler(Extractor<Http2Headers> extractor, Injector<Http2Headers> injector) {
+      this.extractor = extractor;
+      this.injector = injector;
+    }
+
+    @Override public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      TraceContext parent = extractor.extract(((Http2HeadersFrame) msg).headers()).context();
+      Http2Headers response = new DefaultHttp2Headers().status(HttpResponseStatus.OK.codeAsText());
+      injector.inject(parent, response);
+      ctx.write(new DefaultHttp2HeadersFrame(response));
+    }
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + NettyTraceContextBenchmarks.class.getSimpleName())
+      .build();
+
+    new Runner(opt).run();
+  }
+}
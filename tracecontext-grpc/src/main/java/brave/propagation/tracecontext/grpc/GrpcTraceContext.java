@@ -0,0 +1,133 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext.grpc;
+
+import brave.propagation.Propagation;
+import brave.propagation.Propagation.Getter;
+import brave.propagation.Propagation.Setter;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.tracecontext.TraceContextPropagation;
+import brave.propagation.tracecontext.TraceparentFormat;
+import io.grpc.Metadata;
+
+/**
+ * Extracts and injects trace context using gRPC metadata.
+ *
+ * <p>Keys are defined with {@link Metadata#ASCII_STRING_MARSHALLER}, so that only public gRPC
+ * API is used. Reading the bytes of a header without a "-bin" suffix would require gRPC's internal
+ * API, which can change in any release.
+ *
+ * <p>Code that only needs the parent, such as an interceptor, can read {@link
+ * #TRACEPARENT_CONTEXT_KEY} instead of parsing the {@code traceparent} string itself.
+ */
+public final class GrpcTraceContext {
+  /** The {@code traceparent} header. */
+  public static final Metadata.Key<String> TRACEPARENT_KEY =
+    Metadata.Key.of("traceparent", Metadata.ASCII_STRING_MARSHALLER);
+
+  /**
+   * Reads and writes the {@code traceparent} header as a {@link TraceContext}, using {@link
+   * TraceparentFormat}. Parsing remembers the last header on the current thread, so the same parent
+   * on many calls is only parsed once.
+   *
+   * <p>Malformed input parses to null, so {@link Metadata#get(Metadata.Key)} returns null for it.
+   * This is logged the same as the propagation logs it.
+   */
+  public static final Metadata.AsciiMarshaller<TraceContext> TRACEPARENT_MARSHALLER =
+    new Metadata.AsciiMarshaller<TraceContext>() {
+      @Override public String toAsciiString(TraceContext value) {
+        return TraceparentFormat.get().write(value);
+      }
+
+      @Override public TraceContext parseAsciiString(String serialized) {
+        return TraceparentFormat.get().parseOrLast(serialized);
+      }
+
+      @Override public String toString() {
+        return "TraceparentMarshaller";
+      }
+    };
+
+  /** The {@code traceparent} header, as a trace context. */
+  public static final Metadata.Key<TraceContext> TRACEPARENT_CONTEXT_KEY =
+    Metadata.Key.of("traceparent", TRACEPARENT_MARSHALLER);
+
+  /** The {@code tracestate} header. */
+  public static final Metadata.Key<String> TRACESTATE_KEY =
+    Metadata.Key.of("tracestate", Metadata.ASCII_STRING_MARSHALLER);
+
+  static final Getter<Metadata, String> GETTER = new Getter<Metadata, String>() {
+    @Override public String get(Metadata metadata, String key) {
+      return metadata.get(key(key));
+    }
+
+    @Override public String toString() {
+      return "Metadata::get";
+    }
+  };
+
+  static final Setter<Metadata, String> SETTER = new Setter<Metadata, String>() {
+    @Override public void put(Metadata metadata, String key, String value) {
+      Metadata.Key<String> metadataKey = key(key);
+      metadata.discardAll(metadataKey);
+      metadata.put(metadataKey, value);
+    }
+
+    @Override public String toString() {
+      return "Metadata::put";
+    }
+  };
+
+  /**
+   * Returns an extractor of gRPC metadata.
+   *
+   * <p>To skip parsing the same {@code traceparent} repeatedly, such as a streaming client that
+   * sends the same parent on each call, enable {@link
+   * TraceContextPropagation.FactoryBuilder#cacheLastTraceparent(boolean)}.
+   *
+   * @throws IllegalArgumentException if the propagation isn't a {@link TraceContextPropagation}
+   */
+  public static Extractor<Metadata> extractor(Propagation<String> propagation) {
+    return traceContextPropagation(propagation).extractor(GETTER);
+  }
+
+  /**
+   * Returns an injector of gRPC metadata, which replaces any existing trace context headers.
+   *
+   * @throws IllegalArgumentException if the propagation isn't a {@link TraceContextPropagation}
+   */
+  public static Injector<Metadata> injector(Propagation<String> propagation) {
+    return traceContextPropagation(propagation).injector(SETTER);
+  }
+
+  /** Trace context keys are constants, while other keys, such as for B3 fallback, are rare. */
+  static Metadata.Key<String> key(String key) {
+    if (key.equals("traceparent")) return TRACEPARENT_KEY;
+    if (key.equals("tracestate")) return TRACESTATE_KEY;
+    return Metadata.Key.of(key, Metadata.ASCII_STRING_MARSHALLER);
+  }
+
+  static TraceContextPropagation traceContextPropagation(Propagation<String> propagation) {
+    if (propagation == null) throw new NullPointerException("propagation == null");
+    if (!(propagation instanceof TraceContextPropagation)) {
+      throw new IllegalArgumentException(propagation + " is not a TraceContextPropagation");
+    }
+    return (TraceContextPropagation) propagation;
+  }
+
+  GrpcTraceContext() {
+  }
+}
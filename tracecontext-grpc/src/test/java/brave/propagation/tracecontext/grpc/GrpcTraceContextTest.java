@@ -0,0 +1,240 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext.grpc;
+
+import brave.propagation.B3Propagation;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.propagation.tracecontext.TraceContextPropagation;
+import brave.propagation.tracecontext.Tracestate;
+import io.grpc.CallOptions;
+import io.grpc.ClientInterceptors;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.ServerCalls;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class GrpcTraceContextTest {
+  static final MethodDescriptor.Marshaller<String> STRING_MARSHALLER =
+    new MethodDescriptor.Marshaller<String>() {
+      @Override public InputStream stream(String value) {
+        return new ByteArrayInputStream(value.getBytes(UTF_8));
+      }
+
+      @Override public String parse(InputStream stream) {
+        try {
+          return new String(stream.readAllBytes(), UTF_8);
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+
+  static final MethodDescriptor<String, String> ECHO =
+    MethodDescriptor.<String, String>newBuilder()
+      .setType(MethodDescriptor.MethodType.UNARY)
+      .setFullMethodName("test/echo")
+      .setRequestMarshaller(STRING_MARSHALLER)
+      .setResponseMarshaller(STRING_MARSHALLER)
+      .build();
+
+  Propagation<String> propagation = TraceContextPropagation.get();
+  Extractor<Metadata> extractor = GrpcTraceContext.extractor(propagation);
+  Injector<Metadata> injector = GrpcTraceContext.injector(propagation);
+  Metadata metadata = new Metadata();
+
+  TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(0x67891233abcdef01L)
+    .traceId(0x2345678912345678L)
+    .spanId(0x463ac35c9f6413adL)
+    .sampled(true)
+    .build();
+  String traceparent = "00-67891233abcdef012345678912345678-463ac35c9f6413ad-01";
+  String b3 = "67891233abcdef012345678912345678-463ac35c9f6413ad-1";
+
+  BlockingQueue<Metadata> serverHeaders = new LinkedBlockingQueue<>();
+  Server server;
+  ManagedChannel channel;
+
+  @BeforeEach void startServer() throws IOException {
+    ServerServiceDefinition service = ServerServiceDefinition.builder("test")
+      .addMethod(ECHO, ServerCalls.asyncUnaryCall((request, observer) -> {
+        observer.onNext(request);
+        observer.onCompleted();
+      })).build();
+    ServerInterceptor captureHeaders = new ServerInterceptor() {
+      @Override public <Q, P> ServerCall.Listener<Q> interceptCall(ServerCall<Q, P> call,
+        Metadata headers, ServerCallHandler<Q, P> next) {
+        serverHeaders.add(headers);
+        return next.startCall(call, headers);
+      }
+    };
+
+    String name = InProcessServerBuilder.generateName();
+    server = InProcessServerBuilder.forName(name).directExecutor()
+      .addService(ServerInterceptors.intercept(service, captureHeaders))
+      .build().start();
+    channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+  }
+
+  @AfterEach void stopServer() {
+    channel.shutdownNow();
+    server.shutdownNow();
+  }
+
+  @Test void inject() {
+    injector.inject(context, metadata);
+
+    assertThat(metadata.get(Metadata.Key.of("traceparent", Metadata.ASCII_STRING_MARSHALLER)))
+      .isEqualTo(traceparent);
+    assertThat(metadata.get(Metadata.Key.of("tracestate", Metadata.ASCII_STRING_MARSHALLER)))
+      .isEqualTo("b3=" + b3);
+  }
+
+  @Test void inject_replacesHeaders() {
+    metadata.put(GrpcTraceContext.TRACEPARENT_KEY,
+      "00-11111111111111111111111111111111-2222222222222222-01");
+    metadata.put(GrpcTraceContext.TRACESTATE_KEY, "b3=1");
+
+    injector.inject(context, metadata);
+
+    assertThat(metadata.getAll(GrpcTraceContext.TRACEPARENT_KEY)).containsExactly(traceparent);
+    assertThat(metadata.getAll(GrpcTraceContext.TRACESTATE_KEY)).hasSize(1);
+  }
+
+  @Test void extract() {
+    metadata.put(GrpcTraceContext.TRACEPARENT_KEY, traceparent);
+    metadata.put(GrpcTraceContext.TRACESTATE_KEY, "congo=t61rcWkgMzE");
+
+    TraceContext extracted = extractor.extract(metadata).context();
+    assertThat(extracted).isEqualTo(context);
+    assertThat(extracted.findExtra(Tracestate.class).get("congo")).hasToString("t61rcWkgMzE");
+  }
+
+  @Test void extract_malformed() {
+    metadata.put(GrpcTraceContext.TRACEPARENT_KEY,
+      "00-67891233abcdef012345678912345678-463ac35c9f6413aX-01");
+    metadata.put(GrpcTraceContext.TRACESTATE_KEY, "");
+
+    assertThat(extractor.extract(metadata)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test void extract_b3Fallback() {
+    Extractor<Metadata> extractor = GrpcTraceContext.extractor(
+      TraceContextPropagation.newFactoryBuilder().b3Fallback(true).build().get());
+    metadata.put(Metadata.Key.of("b3", Metadata.ASCII_STRING_MARSHALLER), b3);
+
+    assertThat(extractor.extract(metadata).context()).isEqualTo(context);
+  }
+
+  @Test void inProcess() throws Exception {
+    injector.inject(context, metadata);
+
+    call(metadata);
+
+    TraceContext extracted = extractor.extract(serverHeaders.take()).context();
+    assertThat(extracted).isEqualTo(context);
+  }
+
+  @Test void inProcess_otherTracestate() throws Exception {
+    metadata.put(GrpcTraceContext.TRACEPARENT_KEY, traceparent);
+    metadata.put(GrpcTraceContext.TRACESTATE_KEY, "congo=t61rcWkgMzE,b3=" + b3);
+
+    call(metadata);
+
+    Metadata outbound = new Metadata();
+    injector.inject(extractor.extract(serverHeaders.take()).context(), outbound);
+    assertThat(outbound.get(GrpcTraceContext.TRACESTATE_KEY))
+      .isEqualTo("b3=" + b3 + ",congo=t61rcWkgMzE");
+  }
+
+  @Test void inProcess_cacheLastTraceparent() throws Exception {
+    Extractor<Metadata> extractor = GrpcTraceContext.extractor(
+      TraceContextPropagation.newFactoryBuilder().cacheLastTraceparent(true).build().get());
+    injector.inject(context, metadata);
+
+    call(metadata);
+    call(metadata);
+
+    assertThat(extractor.extract(serverHeaders.take()).context()).isEqualTo(context);
+    assertThat(extractor.extract(serverHeaders.take()).context()).isEqualTo(context);
+  }
+
+  @Test void traceparentContextKey() {
+    metadata.put(GrpcTraceContext.TRACEPARENT_CONTEXT_KEY, context);
+
+    assertThat(metadata.get(GrpcTraceContext.TRACEPARENT_KEY)).isEqualTo(traceparent);
+    assertThat(metadata.get(GrpcTraceContext.TRACEPARENT_CONTEXT_KEY)).isEqualTo(context);
+  }
+
+  @Test void traceparentContextKey_sameParentParsedOnce() {
+    metadata.put(GrpcTraceContext.TRACEPARENT_KEY, traceparent);
+
+    assertThat(metadata.get(GrpcTraceContext.TRACEPARENT_CONTEXT_KEY))
+      .isSameAs(metadata.get(GrpcTraceContext.TRACEPARENT_CONTEXT_KEY));
+  }
+
+  @Test void traceparentContextKey_malformed() {
+    metadata.put(GrpcTraceContext.TRACEPARENT_KEY,
+      "00-67891233abcdef012345678912345678-463ac35c9f6413aX-01");
+
+    assertThat(metadata.get(GrpcTraceContext.TRACEPARENT_CONTEXT_KEY)).isNull();
+  }
+
+  @Test void inProcess_traceparentContextKey() throws Exception {
+    metadata.put(GrpcTraceContext.TRACEPARENT_CONTEXT_KEY, context);
+
+    call(metadata);
+
+    assertThat(serverHeaders.take().get(GrpcTraceContext.TRACEPARENT_CONTEXT_KEY))
+      .isEqualTo(context);
+  }
+
+  @Test void notTraceContextPropagation() {
+    assertThatThrownBy(() -> GrpcTraceContext.injector(B3Propagation.get()))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessageEndingWith(" is not a TraceContextPropagation");
+  }
+
+  void call(Metadata headers) {
+    assertThat(ClientCalls.blockingUnaryCall(
+      ClientInterceptors.intercept(channel, MetadataUtils.newAttachHeadersInterceptor(headers)),
+      ECHO, CallOptions.DEFAULT, "hello")).isEqualTo("hello");
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext.kafka;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.tracecontext.TraceContextPropagation;
+import brave.propagation.tracecontext.TraceContextPropagation.BytesGetter;
+import brave.propagation.tracecontext.TraceContextPropagation.BytesSetter;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+
+/**
+ * Extracts and injects trace context using the bytes of Kafka record headers. The {@code
+ * tracestate} header is only decoded into a string when it has entries other than ours to keep.
+ */
+public final class KafkaTraceContext {
+  static final BytesGetter<Headers> GETTER = new BytesGetter<Headers>() {
+    @Override public byte[] get(Headers headers, String key) {
+      Header header = headers.lastHeader(key);
+      return header != null ? header.value() : null;
+    }
+
+    @Override public String toString() {
+      return "Headers::lastHeader";
+    }
+  };
+
+  static final BytesSetter<Headers> SETTER = new BytesSetter<Headers>() {
+    @Override public void put(Headers headers, String key, byte[] value) {
+      try {
+        headers.remove(key);
+        headers.add(key, value);
+      } catch (IllegalStateException e) {
+        // Headers are read-only once a record is sent. There is nothing to do, except not crash.
+      }
+    }
+
+    @Override public String toString() {
+      return "Headers::add";
+    }
+  };
+
+  /**
+   * Returns an extractor of record headers.
+   *
+   * @throws IllegalArgumentException if the propagation isn't a {@link TraceContextPropagation}
+   */
+  public static Extractor<Headers> extractor(Propagation<String> propagation) {
+    return traceContextPropagation(propagation).bytesExtractor(GETTER);
+  }
+
+  /**
+   * Returns an injector of record headers, which replaces any existing trace context headers.
+   *
+   * @throws IllegalArgumentException if the propagation isn't a {@link TraceContextPropagation}
+   */
+  public static Injector<Headers> injector(Propagation<String> propagation) {
+    return traceContextPropagation(propagation).bytesInjector(SETTER);
+  }
+
+  static TraceContextPropagation traceContextPropagation(Propagation<String> propagation) {
+    if (propagation == null) throw new NullPointerException("propagation == null");
+    if (!(propagation instanceof TraceContextPropagation)) {
+      throw new IllegalArgumentException(propagation + " is not a TraceContextPropagation");
+    }
+    return (TraceContextPropagation) propagation;
+  }
+
+  KafkaTraceContext() {
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext.kafka;
+
+import brave.propagation.B3Propagation;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.propagation.tracecontext.TraceContextPropagation;
+import brave.propagation.tracecontext.Tracestate;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+class KafkaTraceContextTest {
+  Propagation<String> propagation = TraceContextPropagation.get();
+  Extractor<Headers> extractor =
+    KafkaTraceContext.extractor(propagation);
+  Injector<Headers> injector =
+    KafkaTraceContext.injector(propagation);
+  RecordHeaders headers = new RecordHeaders();
+
+  TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(0x67891233abcdef01L)
+    .traceId(0x2345678912345678L)
+    .spanId(0x463ac35c9f6413adL)
+    .sampled(true)
+    .build();
+  String traceparent = "00-67891233abcdef012345678912345678-463ac35c9f6413ad-01";
+  String b3 = "67891233abcdef012345678912345678-463ac35c9f6413ad-1";
+
+  @Test void inject() {
+    injector.inject(context, headers);
+
+    assertThat(headers).extracting(Header::key, h -> new String(h.value(), UTF_8))
+      .containsExactly(
+        tuple("traceparent", traceparent),
+        tuple("tracestate", "b3=" + b3));
+  }
+
+  @Test void inject_replacesHeaders() {
+    headers.add("traceparent", "00-11111111111111111111111111111111-2222222222222222-01"
+      .getBytes(UTF_8));
+    headers.add("tracestate", "b3=1".getBytes(UTF_8));
+
+    injector.inject(context, headers);
+
+    assertThat(headers.headers("traceparent")).hasSize(1);
+    assertThat(value("traceparent")).isEqualTo(traceparent);
+    assertThat(headers.headers("tracestate")).hasSize(1);
+  }
+
+  @Test void inject_readOnly() {
+    headers.setReadOnly();
+
+    injector.inject(context, headers); // doesn't crash
+
+    assertThat(headers.toArray()).isEmpty();
+  }
+
+  @Test void inject_otherTracestate() {
+    headers.add("traceparent", traceparent.getBytes(UTF_8));
+    headers.add("tracestate", ("congo=t61rcWkgMzE,b3=" + b3).getBytes(UTF_8));
+    TraceContext extracted = extractor.extract(headers).context();
+
+    RecordHeaders outbound = new RecordHeaders();
+    injector.inject(extracted, outbound);
+
+    assertThat(new String(outbound.lastHeader("tracestate").value(), UTF_8))
+      .isEqualTo("b3=" + b3 + ",congo=t61rcWkgMzE");
+  }
+
+  @Test void extract() {
+    headers.add("traceparent", traceparent.getBytes(UTF_8));
+    headers.add("tracestate", "congo=t61rcWkgMzE".getBytes(UTF_8));
+
+    TraceContext extracted = extractor.extract(headers).context();
+    assertThat(extracted).isEqualTo(context);
+    assertThat(extracted.findExtra(Tracestate.class).get("congo")).hasToString("t61rcWkgMzE");
+  }
+
+  @Test void extract_roundTrip() {
+    injector.inject(context, headers);
+
+    assertThat(extractor.extract(headers).context()).isEqualTo(context);
+  }
+
+  @Test void extract_lastHeader() {
+    headers.add("traceparent", "00-11111111111111111111111111111111-2222222222222222-01"
+      .getBytes(UTF_8));
+    headers.add("traceparent", traceparent.getBytes(UTF_8));
+    headers.add("tracestate", "".getBytes(UTF_8));
+
+    assertThat(extractor.extract(headers).context()).isEqualTo(context);
+  }
+
+  @Test void extract_malformed() {
+    headers.add("traceparent", "00-67891233abcdef012345678912345678-463ac35c9f6413aX-01".getBytes(UTF_8));
+    headers.add("tracestate", "".getBytes(UTF_8));
+
+    assertThat(extractor.extract(headers)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test void extract_nonAsciiTracestate() {
+    headers.add("traceparent", traceparent.getBytes(UTF_8));
+    headers.add("tracestate", "congo=é".getBytes(UTF_8));
+
+    assertThat(extractor.extract(headers)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test void extract_b3Fallback() {
+    Extractor<Headers> extractor = KafkaTraceContext.extractor(
+      TraceContextPropagation.newFactoryBuilder().b3Fallback(true).build().get());
+    headers.add("b3", b3.getBytes(UTF_8));
+
+    assertThat(extractor.extract(headers).context()).isEqualTo(context);
+  }
+
+  @Test void notTraceContextPropagation() {
+    assertThatThrownBy(() -> KafkaTraceContext.extractor(B3Propagation.get()))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessageEndingWith(" is not a TraceContextPropagation");
+  }
+
+  String value(String key) {
+    return new String(headers.lastHeader(key).value(), UTF_8);
+  }
+}
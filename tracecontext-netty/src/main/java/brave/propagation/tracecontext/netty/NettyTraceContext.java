@@ -0,0 +1,162 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext.netty;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.tracecontext.TraceContextPropagation;
+import brave.propagation.tracecontext.TraceContextPropagation.BytesGetter;
+import brave.propagation.tracecontext.TraceContextPropagation.BytesSetter;
+import brave.propagation.tracecontext.TraceContextPropagation.CharSequenceGetter;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.util.AsciiString;
+import java.util.Iterator;
+
+/**
+ * Extracts and injects trace context using Netty headers, looking up names as prebuilt {@link
+ * AsciiString}s and writing values as {@link AsciiString}s that wrap the encoded bytes.
+ *
+ * <p>HTTP/2 header values are decoded as {@link AsciiString}, so {@code traceparent} is parsed
+ * from their bytes in place. HTTP/1.x header values are looked up as {@link CharSequence}, so
+ * neither decoded {@link String}s nor {@link AsciiString}s, such as written by our injector, are
+ * converted.
+ */
+public final class NettyTraceContext {
+  /** The {@code traceparent} header name. */
+  public static final AsciiString TRACEPARENT_NAME = AsciiString.cached("traceparent");
+
+  /** The {@code tracestate} header name. */
+  public static final AsciiString TRACESTATE_NAME = AsciiString.cached("tracestate");
+
+  static final CharSequenceGetter<HttpHeaders> HTTP_GETTER = new CharSequenceGetter<HttpHeaders>() {
+    // HttpHeaders.get converts the value to a String, so use the iterator, which doesn't. It
+    // returns the most recently added value first, so the same value as get is the last.
+    @Override public CharSequence get(HttpHeaders headers, String key) {
+      Iterator<? extends CharSequence> values = headers.valueCharSequenceIterator(name(key));
+      CharSequence result = null;
+      while (values.hasNext()) result = values.next();
+      return result;
+    }
+
+    @Override public String toString() {
+      return "HttpHeaders::get";
+    }
+  };
+
+  static final BytesSetter<HttpHeaders> HTTP_SETTER = new BytesSetter<HttpHeaders>() {
+    @Override public void put(HttpHeaders headers, String key, byte[] value) {
+      headers.set(name(key), new AsciiString(value, false));
+    }
+
+    @Override public String toString() {
+      return "HttpHeaders::set";
+    }
+  };
+
+  static final BytesGetter<Http2Headers> HTTP2_GETTER = new BytesGetter<Http2Headers>() {
+    @Override public byte[] get(Http2Headers headers, String key) {
+      CharSequence value = headers.get(name(key));
+      return value != null ? bytes(value) : null;
+    }
+
+    @Override public String toString() {
+      return "Http2Headers::get";
+    }
+  };
+
+  static final BytesSetter<Http2Headers> HTTP2_SETTER = new BytesSetter<Http2Headers>() {
+    @Override public void put(Http2Headers headers, String key, byte[] value) {
+      headers.set(name(key), new AsciiString(value, false));
+    }
+
+    @Override public String toString() {
+      return "Http2Headers::set";
+    }
+  };
+
+  /**
+   * Returns an extractor of HTTP/1.x headers.
+   *
+   * @throws IllegalArgumentException if the propagation isn't a {@link TraceContextPropagation}
+   */
+  public static Extractor<HttpHeaders> extractor(Propagation<String> propagation) {
+    return traceContextPropagation(propagation).charSequenceExtractor(HTTP_GETTER);
+  }
+
+  /**
+   * Returns an injector of HTTP/1.x headers, which replaces any existing trace context headers.
+   *
+   * @throws IllegalArgumentException if the propagation isn't a {@link TraceContextPropagation}
+   */
+  public static Injector<HttpHeaders> injector(Propagation<String> propagation) {
+    return traceContextPropagation(propagation).bytesInjector(HTTP_SETTER);
+  }
+
+  /**
+   * Returns an extractor of HTTP/2 headers, which parses {@code traceparent} from the bytes of its
+   * {@link AsciiString} value.
+   *
+   * @throws IllegalArgumentException if the propagation isn't a {@link TraceContextPropagation}
+   */
+  public static Extractor<Http2Headers> http2Extractor(Propagation<String> propagation) {
+    return traceContextPropagation(propagation).bytesExtractor(HTTP2_GETTER);
+  }
+
+  /**
+   * Returns an injector of HTTP/2 headers, which replaces any existing trace context headers.
+   *
+   * @throws IllegalArgumentException if the propagation isn't a {@link TraceContextPropagation}
+   */
+  public static Injector<Http2Headers> http2Injector(Propagation<String> propagation) {
+    return traceContextPropagation(propagation).bytesInjector(HTTP2_SETTER);
+  }
+
+  /** Trace context names are constants, while other names, such as for B3 fallback, are rare. */
+  static AsciiString name(String key) {
+    if (key.equals("traceparent")) return TRACEPARENT_NAME;
+    if (key.equals("tracestate")) return TRACESTATE_NAME;
+    return AsciiString.of(key);
+  }
+
+  /**
+   * Returns the backing array of an {@link AsciiString} value when it spans the whole array, as is
+   * the case for values decoded by HPACK or written by our injectors. Values are only read, never
+   * modified.
+   *
+   * <p>Other values, such as a {@link String} set by the application, are encoded into a new
+   * array. This is the same copy {@link AsciiString#of(CharSequence)} makes, without wrapping it.
+   */
+  static byte[] bytes(CharSequence value) {
+    if (value instanceof AsciiString) {
+      AsciiString ascii = (AsciiString) value;
+      return ascii.isEntireArrayUsed() ? ascii.array() : ascii.toByteArray();
+    }
+    byte[] result = new byte[value.length()];
+    for (int i = 0; i < result.length; i++) result[i] = AsciiString.c2b(value.charAt(i));
+    return result;
+  }
+
+  static TraceContextPropagation traceContextPropagation(Propagation<String> propagation) {
+    if (propagation == null) throw new NullPointerException("propagation == null");
+    if (!(propagation instanceof TraceContextPropagation)) {
+      throw new IllegalArgumentException(propagation + " is not a TraceContextPropagation");
+    }
+    return (TraceContextPropagation) propagation;
+  }
+
+  NettyTraceContext() {
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext.netty;
+
+import brave.propagation.B3Propagation;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.propagation.tracecontext.TraceContextPropagation;
+import brave.propagation.tracecontext.Tracestate;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.util.AsciiString;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class NettyTraceContextTest {
+  Propagation<String> propagation = TraceContextPropagation.get();
+  Extractor<HttpHeaders> extractor = NettyTraceContext.extractor(propagation);
+  Injector<HttpHeaders> injector = NettyTraceContext.injector(propagation);
+  Extractor<Http2Headers> http2Extractor = NettyTraceContext.http2Extractor(propagation);
+  Injector<Http2Headers> http2Injector = NettyTraceContext.http2Injector(propagation);
+  HttpHeaders headers = new DefaultHttpHeaders();
+  Http2Headers http2Headers = new DefaultHttp2Headers();
+
+  TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(0x67891233abcdef01L)
+    .traceId(0x2345678912345678L)
+    .spanId(0x463ac35c9f6413adL)
+    .sampled(true)
+    .build();
+  String traceparent = "00-67891233abcdef012345678912345678-463ac35c9f6413ad-01";
+  String b3 = "67891233abcdef012345678912345678-463ac35c9f6413ad-1";
+
+  @Test void inject() {
+    injector.inject(context, headers);
+
+    assertThat(headers.get("traceparent")).isEqualTo(traceparent);
+    assertThat(headers.get("tracestate")).isEqualTo("b3=" + b3);
+  }
+
+  @Test void inject_writesAsciiString() {
+    injector.inject(context, headers);
+
+    assertThat(headers.iteratorCharSequence().next().getValue()).isInstanceOf(AsciiString.class);
+  }
+
+  @Test void inject_replacesHeaders() {
+    headers.add("traceparent", "00-11111111111111111111111111111111-2222222222222222-01");
+    headers.add("tracestate", "b3=1");
+
+    injector.inject(context, headers);
+
+    assertThat(headers.getAll("traceparent")).containsExactly(traceparent);
+    assertThat(headers.getAll("tracestate")).hasSize(1);
+  }
+
+  @Test void extract() {
+    headers.set("traceparent", traceparent);
+    headers.set("tracestate", "congo=t61rcWkgMzE");
+
+    TraceContext extracted = extractor.extract(headers).context();
+    assertThat(extracted).isEqualTo(context);
+    assertThat(extracted.findExtra(Tracestate.class).get("congo")).hasToString("t61rcWkgMzE");
+  }
+
+  @Test void extract_asciiString() {
+    headers.set(NettyTraceContext.TRACEPARENT_NAME, new AsciiString(traceparent));
+    headers.set(NettyTraceContext.TRACESTATE_NAME, new AsciiString("congo=t61rcWkgMzE"));
+
+    TraceContext extracted = extractor.extract(headers).context();
+    assertThat(extracted).isEqualTo(context);
+    assertThat(extracted.findExtra(Tracestate.class).get("congo")).hasToString("t61rcWkgMzE");
+  }
+
+  @Test void extract_firstValue() {
+    headers.add("traceparent", traceparent);
+    headers.add("traceparent", "00-11111111111111111111111111111111-2222222222222222-01");
+    headers.add("tracestate", "");
+
+    assertThat(extractor.extract(headers).context()).isEqualTo(context);
+  }
+
+  @Test void extract_b3Fallback() {
+    Extractor<HttpHeaders> extractor = NettyTraceContext.extractor(
+      TraceContextPropagation.newFactoryBuilder().b3Fallback(true).build().get());
+    headers.set("b3", b3);
+
+    assertThat(extractor.extract(headers).context()).isEqualTo(context);
+  }
+
+  @Test void extract_decoded() {
+    EmbeddedChannel channel = new EmbeddedChannel(new HttpServerCodec());
+    channel.writeInbound(Unpooled.copiedBuffer("GET / HTTP/1.1\r\n"
+      + "Host: localhost\r\n"
+      + "traceparent: " + traceparent + "\r\n"
+      + "tracestate: congo=t61rcWkgMzE,b3=" + b3 + "\r\n"
+      + "\r\n", UTF_8));
+
+    HttpRequest request = channel.readInbound();
+    try {
+      TraceContext extracted = extractor.extract(request.headers()).context();
+      assertThat(extracted).isEqualTo(context);
+      assertThat(extracted.findExtra(Tracestate.class).get("congo")).hasToString("t61rcWkgMzE");
+    } finally {
+      ReferenceCountUtil.release(request);
+      channel.finishAndReleaseAll();
+    }
+  }
+
+  @Test void http2Inject() {
+    http2Injector.inject(context, http2Headers);
+
+    assertThat(http2Headers.get("traceparent")).isInstanceOf(AsciiString.class)
+      .hasToString(traceparent);
+    assertThat(http2Headers.get("tracestate")).hasToString("b3=" + b3);
+  }
+
+  @Test void http2Extract() {
+    http2Headers.set(NettyTraceContext.TRACEPARENT_NAME, new AsciiString(traceparent));
+    http2Headers.set(NettyTraceContext.TRACESTATE_NAME, new AsciiString("congo=t61rcWkgMzE"));
+
+    TraceContext extracted = http2Extractor.extract(http2Headers).context();
+    assertThat(extracted).isEqualTo(context);
+    assertThat(extracted.findExtra(Tracestate.class).get("congo")).hasToString("t61rcWkgMzE");
+  }
+
+  /** Values can be a slice of a larger array, or not an {@link AsciiString} at all. */
+  @Test void http2Extract_slicesAndStrings() {
+    byte[] padded = ("xx" + traceparent + "xx").getBytes(UTF_8);
+    http2Headers.set("traceparent", new AsciiString(padded, 2, traceparent.length(), false));
+    http2Headers.set("tracestate", "");
+
+    assertThat(http2Extractor.extract(http2Headers).context()).isEqualTo(context);
+  }
+
+  @Test void bytes() {
+    byte[] array = traceparent.getBytes(UTF_8);
+    assertThat(NettyTraceContext.bytes(new AsciiString(array, false))).isSameAs(array);
+    assertThat(NettyTraceContext.bytes(new AsciiString(array, 2, 3, false)))
+      .containsExactly('-', '6', '7');
+    assertThat(NettyTraceContext.bytes(traceparent)).isEqualTo(array);
+  }
+
+  @Test void http2Extract_malformed() {
+    http2Headers.set("traceparent", "00-67891233abcdef012345678912345678-463ac35c9f6413aX-01");
+    http2Headers.set("tracestate", "");
+
+    assertThat(http2Extractor.extract(http2Headers)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test void http2RoundTrip() {
+    http2Injector.inject(context, http2Headers);
+
+    assertThat(http2Extractor.extract(http2Headers).context()).isEqualTo(context);
+  }
+
+  @Test void notTraceContextPropagation() {
+    assertThatThrownBy(() -> NettyTraceContext.injector(B3Propagation.get()))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessageEndingWith(" is not a TraceContextPropagation");
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+/**
+ * A view of ASCII header bytes, so that they can be scanned without decoding them into a {@link
+ * String}. Bytes are interpreted as ISO-8859-1, the same as {@link AsciiStrings#decode(byte[])}, so
+ * that non-ASCII input fails validation the same way.
+ */
+final class AsciiSequence implements CharSequence {
+  final byte[] bytes;
+  final int begin, length;
+
+  AsciiSequence(byte[] bytes) {
+    this(bytes, 0, bytes.length);
+  }
+
+  AsciiSequence(byte[] bytes, int begin, int end) {
+    this.bytes = bytes;
+    this.begin = begin;
+    this.length = end - begin;
+  }
+
+  @Override public int length() {
+    return length;
+  }
+
+  @Override public char charAt(int index) {
+    if (index < 0) throw new IndexOutOfBoundsException("index < 0");
+    if (index >= length) throw new IndexOutOfBoundsException("index >= length");
+    return (char) (bytes[begin + index] & 0xff);
+  }
+
+  @Override public CharSequence subSequence(int beginIndex, int endIndex) {
+    if (beginIndex < 0) throw new IndexOutOfBoundsException("beginIndex < 0");
+    if (endIndex > length) throw new IndexOutOfBoundsException("endIndex > length");
+    if (beginIndex > endIndex) throw new IndexOutOfBoundsException("beginIndex > endIndex");
+    if (beginIndex == 0 && endIndex == length) return this;
+    return new AsciiSequence(bytes, begin + beginIndex, begin + endIndex);
+  }
+
+  /** Decodes the bytes, which is only needed when entries are kept. */
+  @Override public String toString() {
+    return AsciiStrings.decode(bytes, begin, begin + length);
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.propagation.TraceContext;
+import java.nio.charset.Charset;
+
+/**
+ * Creates strings from ASCII encoded header values.
+ *
+ * <p>Strings in Java 8 are UTF-16, so this encodes into a {@code char[]}. The Java 9+ version of
+ * this type is in the "src/main/java9" directory. As strings in Java 9+ are compact (Latin-1 when
+ * possible), that version encodes bytes instead, saving a compression pass when creating strings.
+ */
+final class AsciiStrings {
+  static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  /** Decodes a header value, which is ASCII, without the checks of a UTF-8 decoder. */
+  static String decode(byte[] value) {
+    return new String(value, ISO_8859_1);
+  }
+
+  /** Like {@link #decode(byte[])}, except only the range from begin to end index. */
+  static String decode(byte[] value, int beginIndex, int endIndex) {
+    return new String(value, beginIndex, endIndex - beginIndex, ISO_8859_1);
+  }
+
+  static String traceparent(TraceparentFormat format, TraceContext context) {
+    char[] buffer = TraceparentFormat.getCharBuffer();
+    int length = format.write(context, buffer, 0);
+    return new String(buffer, 0, length);
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Counts outcomes in counters striped by thread, so that request threads rarely contend. Read the
+ * counts periodically, for example from gauges of your metrics system.
+ *
+ * <p>Header lengths are counted in buckets with the inclusive upper bounds 64, 128, 256 and 512,
+ * followed by a bucket for longer headers. Entry counts are counted by value, from zero to 32,
+ * followed by a bucket for more than 32 entries. Headers whose entries weren't all counted are only
+ * counted by length.
+ */
+public final class CountingTraceContextMetrics extends TraceContextMetrics {
+  static final int[] LENGTH_BOUNDS = {64, 128, 256, 512};
+  static final int MAX_ENTRIES = Tracestate.MAX_ENTRIES;
+
+  // Offsets of each counter in the striped counters
+  static final int EXTRACTED = 0, EXTRACTED_NOTHING = EXTRACTED + Source.values().length,
+    INJECTED = EXTRACTED_NOTHING + 1, TRACESTATE_CACHE_HITS = INJECTED + 1,
+    TRACESTATE_CACHE_MISSES = TRACESTATE_CACHE_HITS + 1,
+    TRACESTATE_LENGTHS = TRACESTATE_CACHE_MISSES + 1,
+    TRACESTATE_ENTRY_COUNTS = TRACESTATE_LENGTHS + LENGTH_BOUNDS.length + 1,
+    INJECTED_TRACESTATE_LENGTHS = TRACESTATE_ENTRY_COUNTS + MAX_ENTRIES + 2,
+    COUNTER_COUNT = INJECTED_TRACESTATE_LENGTHS + LENGTH_BOUNDS.length + 1;
+
+  final StripedCounters counters = new StripedCounters(COUNTER_COUNT);
+  final ConcurrentMap<String, StripedCounters> extractFailed =
+    new ConcurrentHashMap<String, StripedCounters>();
+
+  @Override public void extracted(Source source) {
+    counters.increment(EXTRACTED + source.ordinal());
+  }
+
+  @Override public void extractedNothing() {
+    counters.increment(EXTRACTED_NOTHING);
+  }
+
+  @Override public void extractFailed(String reason) {
+    StripedCounters counter = extractFailed.get(reason);
+    if (counter == null) {
+      StripedCounters newCounter = new StripedCounters(1);
+      counter = extractFailed.putIfAbsent(reason, newCounter);
+      if (counter == null) counter = newCounter;
+    }
+    counter.increment(0);
+  }
+
+  @Override public void tracestateReceived(int length, int entryCount) {
+    counters.increment(TRACESTATE_LENGTHS + lengthBucket(length));
+    if (entryCount >= 0) {
+      counters.increment(TRACESTATE_ENTRY_COUNTS + Math.min(entryCount, MAX_ENTRIES + 1));
+    }
+  }
+
+  @Override public void tracestateCached(boolean hit) {
+    counters.increment(hit ? TRACESTATE_CACHE_HITS : TRACESTATE_CACHE_MISSES);
+  }
+
+  @Override public void injected(int tracestateLength) {
+    counters.increment(INJECTED);
+    counters.increment(INJECTED_TRACESTATE_LENGTHS + lengthBucket(tracestateLength));
+  }
+
+  /** Returns the count of trace contexts extracted from the source. */
+  public long extractedCount(Source source) {
+    if (source == null) throw new NullPointerException("source == null");
+    return counters.sum(EXTRACTED + source.ordinal());
+  }
+
+  /** Returns the count of requests without headers to extract. */
+  public long extractedNothingCount() {
+    return counters.sum(EXTRACTED_NOTHING);
+  }
+
+  /** Returns the count of failed extractions by reason. */
+  public Map<String, Long> extractFailedCounts() {
+    Map<String, Long> result = new LinkedHashMap<String, Long>();
+    for (Map.Entry<String, StripedCounters> entry : extractFailed.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().sum(0));
+    }
+    return result;
+  }
+
+  /** Returns the count of received {@code tracestate} headers in each length bucket. */
+  public long[] tracestateLengthCounts() {
+    return counters.sums(TRACESTATE_LENGTHS, LENGTH_BOUNDS.length + 1);
+  }
+
+  /** Returns the count of received {@code tracestate} headers by their count of entries. */
+  public long[] tracestateEntryCounts() {
+    return counters.sums(TRACESTATE_ENTRY_COUNTS, MAX_ENTRIES + 2);
+  }
+
+  /** Returns the count of {@code tracestate} headers whose validation was skipped by the cache. */
+  public long tracestateCacheHitCount() {
+    return counters.sum(TRACESTATE_CACHE_HITS);
+  }
+
+  /** Returns the count of {@code tracestate} headers validated, as they weren't cached. */
+  public long tracestateCacheMissCount() {
+    return counters.sum(TRACESTATE_CACHE_MISSES);
+  }
+
+  /** Returns the count of injections. */
+  public long injectedCount() {
+    return counters.sum(INJECTED);
+  }
+
+  /** Returns the count of injected {@code tracestate} headers in each length bucket. */
+  public long[] injectedTracestateLengthCounts() {
+    return counters.sums(INJECTED_TRACESTATE_LENGTHS, LENGTH_BOUNDS.length + 1);
+  }
+
+  static int lengthBucket(int length) {
+    for (int i = 0; i < LENGTH_BOUNDS.length; i++) {
+      if (length <= LENGTH_BOUNDS[i]) return i;
+    }
+    return LENGTH_BOUNDS.length;
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.internal.Nullable;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.propagation.tracecontext.TracestateFormat.ScanResult;
+
+/**
+ * Records Java Flight Recorder events for extraction and injection. The API to define events was
+ * added in Java 11, so this version, used by older runtimes, records nothing. See the same type in
+ * "src/main/java11".
+ *
+ * <p>Events are typed as {@link Object}, so that callers don't link to types that don't exist
+ * here. A null event means it is disabled, which callers check before doing any work for it.
+ */
+final class FlightRecorderEvents {
+  /** Returns an extraction event that has begun, or null if disabled. */
+  @Nullable static Object beginExtract() {
+    return null;
+  }
+
+  /** Completes an event from {@link #beginExtract()}, with the same inputs as metrics. */
+  static void commitExtract(Object event, MetricsRecorder metricsRecorder,
+    @Nullable Object traceparent, @Nullable Object tracestate, ScanResult found,
+    TraceContextOrSamplingFlags result, boolean fromB3) {
+  }
+
+  /** Returns an injection event that has begun, or null if disabled. */
+  @Nullable static Object beginInject() {
+    return null;
+  }
+
+  /** Completes an event from {@link #beginInject()}. */
+  static void commitInject(Object event, int traceparentLength, int tracestateLength) {
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.internal.Nullable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Limits failure logging to the first occurrence of each reason per interval. Later occurrences are
+ * only counted, and logged as one summary per reason with the first failure after the interval.
+ *
+ * <p>Reasons are message patterns and their parameter, which are constants. Counting them doesn't
+ * allocate, so a storm of malformed headers costs map lookups instead of a log record each.
+ */
+class LogSummarizer {
+  /** Set on a counter removed by a summary, so that any later increment leaves it negative. */
+  static final long REMOVED = Long.MIN_VALUE;
+
+  final long intervalNanos;
+  final ConcurrentMap<String, ConcurrentMap<String, AtomicLong>> suppressed =
+    new ConcurrentHashMap<String, ConcurrentMap<String, AtomicLong>>();
+  final AtomicLong nextSummaryNanos;
+
+  LogSummarizer(long interval, TimeUnit unit) {
+    if (interval <= 0) throw new IllegalArgumentException("interval <= 0");
+    this.intervalNanos = unit.toNanos(interval);
+    this.nextSummaryNanos = new AtomicLong(nanoTime() + intervalNanos);
+  }
+
+  /** Like {@link Logger#log(Level, String, Object)}, at fine level, except rate-limited. */
+  void log(Logger logger, String msg, @Nullable String param1) {
+    long now = nanoTime(), nextSummary = nextSummaryNanos.get();
+    // Only one thread logs summaries for the interval: the one that advances it
+    boolean due = now - nextSummary >= 0;
+    if (due && nextSummaryNanos.compareAndSet(nextSummary, now + intervalNanos)) {
+      logSummaries(logger);
+    }
+
+    ConcurrentMap<String, AtomicLong> byParam = suppressed.get(msg);
+    if (byParam == null) {
+      ConcurrentMap<String, AtomicLong> newByParam = new ConcurrentHashMap<String, AtomicLong>();
+      byParam = suppressed.putIfAbsent(msg, newByParam);
+      if (byParam == null) byParam = newByParam;
+    }
+
+    String key = param1 != null ? param1 : "";
+    while (true) {
+      AtomicLong count = byParam.get(key);
+      if (count == null) {
+        count = byParam.putIfAbsent(key, new AtomicLong());
+        if (count == null) { // first this interval
+          logFirst(logger, msg, param1);
+          return;
+        }
+      }
+      // Including when another thread added the counter first. If a summary removed the counter
+      // after it was read, the increment leaves it negative, so retry with a new counter.
+      if (count.incrementAndGet() > 0) return;
+    }
+  }
+
+  /**
+   * Logs a summary of each reason suppressed since the last. Reasons are removed, so that their
+   * next occurrence is logged again.
+   */
+  void logSummaries(Logger logger) {
+    for (Map.Entry<String, ConcurrentMap<String, AtomicLong>> byMsg : suppressed.entrySet()) {
+      for (Map.Entry<String, AtomicLong> byParam : byMsg.getValue().entrySet()) {
+        // Read the counter removed, as the entry could be replaced after it was iterated. Mark
+        // it removed, so that a thread that read it before removal doesn't count into it.
+        AtomicLong removed = byMsg.getValue().remove(byParam.getKey());
+        long count = removed != null ? removed.getAndSet(REMOVED) : 0L;
+        if (count == 0) continue;
+        String reason = byParam.getKey().isEmpty()
+          ? byMsg.getKey()
+          : byMsg.getKey().replace("{0}", byParam.getKey());
+        // Concatenate instead of using parameters, as messages include quotes like '='
+        logger.log(Level.FINE, reason + " (" + count + " more since last logged)");
+      }
+    }
+  }
+
+  static void logFirst(Logger logger, String msg, @Nullable String param1) {
+    if (param1 == null) {
+      logger.log(Level.FINE, msg);
+      return;
+    }
+    LogRecord lr = new LogRecord(Level.FINE, msg);
+    Object[] params = {param1};
+    lr.setParameters(params);
+    logger.log(lr);
+  }
+
+  long nanoTime() { // visible for testing
+    return System.nanoTime();
+  }
+}
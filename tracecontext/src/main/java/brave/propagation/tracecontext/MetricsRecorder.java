@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.internal.Nullable;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.propagation.tracecontext.TraceContextMetrics.Source;
+import brave.propagation.tracecontext.TraceContextPropagation.LastFailure;
+import brave.propagation.tracecontext.TracestateFormat.ScanResult;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reports extraction outcomes to {@link TraceContextMetrics}, either those set by the user or an
+ * adapter to a flight recorder event. Extractors only call this when one of those is present.
+ *
+ * <p>Nothing is parsed again here. What was found in {@code tracestate} is read from the {@link
+ * ScanResult} of the extraction, and why it failed from the {@link LastFailure} logged on this
+ * thread. Extractors clear that before each extraction they record, so a failure that wasn't logged
+ * means our entry isn't B3 single format, as B3 parsing logs elsewhere.
+ */
+final class MetricsRecorder {
+  static final String MISSING_TRACESTATE = "Missing tracestate";
+
+  final String malformedEntry;
+  /** Messages formatted with their parameter, so that repeated failures share the reason. */
+  final ConcurrentMap<String, ConcurrentMap<String, String>> formatted =
+    new ConcurrentHashMap<String, ConcurrentMap<String, String>>();
+
+  MetricsRecorder(String tracestateKey) {
+    this.malformedEntry = "Invalid entry: " + tracestateKey + " is not B3 single format";
+  }
+
+  /** Forgets any failure logged on this thread, before an extraction that will be recorded. */
+  static void beginExtract() {
+    LastFailure.get().set(null, null);
+  }
+
+  /**
+   * @param metrics     receives the outcome
+   * @param traceparent a {@link CharSequence} or {@code byte[]}, or null if absent
+   * @param tracestate  a {@link CharSequence} or {@code byte[]}, or null if absent or not read
+   * @param found       what extraction found in {@code tracestate}, left as initialized if it
+   *                    wasn't read, such as when {@code traceparent} is invalid
+   * @param fromB3      true if the result is from B3 fallback
+   */
+  void extracted(TraceContextMetrics metrics, @Nullable Object traceparent,
+    @Nullable Object tracestate, ScanResult found, TraceContextOrSamplingFlags result,
+    boolean fromB3) {
+    if (tracestate != null) metrics.tracestateReceived(length(tracestate), found.entryCount);
+    if (result != TraceContextOrSamplingFlags.EMPTY && !fromB3) {
+      metrics.extracted(found.thisEntry >= 0 ? Source.B3_ENTRY : Source.TRACEPARENT);
+      return;
+    }
+
+    if (traceparent != null) {
+      metrics.extractFailed(tracestate != null ? failureReason() : MISSING_TRACESTATE);
+    }
+    if (fromB3) {
+      metrics.extracted(Source.B3);
+    } else if (traceparent == null) {
+      metrics.extractedNothing();
+    }
+  }
+
+  String failureReason() {
+    LastFailure lastFailure = LastFailure.get();
+    String msg = lastFailure.msg, param1 = lastFailure.param1;
+    if (msg == null) return malformedEntry; // both headers are valid, so our entry must not be
+    if (param1 == null) return msg;
+
+    ConcurrentMap<String, String> byParam = formatted.get(msg);
+    if (byParam == null) {
+      ConcurrentMap<String, String> newByParam = new ConcurrentHashMap<String, String>();
+      byParam = formatted.putIfAbsent(msg, newByParam);
+      if (byParam == null) byParam = newByParam;
+    }
+    String reason = byParam.get(param1);
+    if (reason == null) {
+      reason = msg.replace("{0}", param1);
+      byParam.putIfAbsent(param1, reason);
+    }
+    return reason;
+  }
+
+  /** Returns the length of a {@link CharSequence} or {@code byte[]} header. */
+  static int length(Object header) {
+    return header instanceof byte[] ? ((byte[]) header).length : ((CharSequence) header).length();
+  }
+}
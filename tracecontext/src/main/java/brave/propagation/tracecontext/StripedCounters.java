@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters striped by thread, so that request threads rarely increment the same cache line. This
+ * is similar to {@code LongAdder}, which isn't available in Java 6.
+ *
+ * <p>Each stripe holds every counter, followed by padding so that stripes don't share a cache
+ * line. Grouping counters by stripe, instead of striping each counter, keeps the padding to one
+ * per stripe. Threads pick a stripe by their ID, so threads started together use different ones.
+ */
+final class StripedCounters {
+  static final int MAX_STRIPES = 64;
+  // 128 bytes of longs, as some processors fetch cache lines in pairs
+  static final int PADDING = 16;
+  static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+  /** Returns the least power of two at least {@code processors}, up to {@link #MAX_STRIPES}. */
+  static int stripes(int processors) {
+    int result = 1;
+    while (result < processors && result < MAX_STRIPES) result <<= 1;
+    return result;
+  }
+
+  final int stripeMask, stripeLength;
+  final AtomicLongArray cells;
+
+  StripedCounters(int counterCount) {
+    this(counterCount, STRIPES);
+  }
+
+  /** @param stripes a power of two */
+  StripedCounters(int counterCount, int stripes) {
+    this.stripeMask = stripes - 1;
+    this.stripeLength = counterCount + PADDING;
+    this.cells = new AtomicLongArray(stripes * stripeLength);
+  }
+
+  void increment(int counter) {
+    int stripe = (int) Thread.currentThread().getId() & stripeMask;
+    cells.incrementAndGet(stripe * stripeLength + counter);
+  }
+
+  long sum(int counter) {
+    long result = 0L;
+    for (int i = counter, length = cells.length(); i < length; i += stripeLength) {
+      result += cells.get(i);
+    }
+    return result;
+  }
+
+  /** Returns the sum of each counter in the range. */
+  long[] sums(int fromCounter, int count) {
+    long[] result = new long[count];
+    for (int i = 0; i < count; i++) result[i] = sum(fromCounter + i);
+    return result;
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.propagation.Propagation.Getter;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.propagation.tracecontext.TraceContextPropagation.BytesGetter;
+import brave.propagation.tracecontext.TracestateFormat.ScanResult;
+import java.nio.charset.Charset;
+
+import static brave.propagation.tracecontext.TraceContextPropagation.TRACEPARENT;
+import static brave.propagation.tracecontext.TraceContextPropagation.TRACESTATE;
+
+/**
+ * Parses {@code traceparent} from header bytes. The {@code tracestate} header is scanned through an
+ * {@link AsciiSequence} view of its bytes, then handled the same as {@link TraceContextExtractor}.
+ * It is only decoded into a string when there are entries to keep, as {@link Tracestate} is a view
+ * over one. When ours is the only entry, the usual case, nothing is decoded.
+ */
+final class TraceContextBytesExtractor<R> implements Extractor<R> {
+  final BytesGetter<R> getter;
+  final TraceparentFormat traceparentFormat;
+  final boolean cacheLastTraceparent;
+  final TraceContextExtractor<R> delegate;
+
+  TraceContextBytesExtractor(TraceContextPropagation propagation, BytesGetter<R> getter) {
+    this.getter = getter;
+    this.traceparentFormat = propagation.traceparentFormat;
+    this.cacheLastTraceparent = propagation.cacheLastTraceparent;
+    // B3 fallback reads through the delegate, so it needs a getter of strings.
+    this.delegate = new TraceContextExtractor<R>(propagation, new Utf8Getter<R>(getter));
+  }
+
+  @Override public TraceContextOrSamplingFlags extract(R request) {
+    if (request == null) throw new NullPointerException("request == null");
+    Object event = FlightRecorderEvents.beginExtract();
+    ScanResult found = delegate.newScanResult(event);
+
+    // Same as TraceContextExtractor: both headers must be present, and traceparent must be valid.
+    TraceContextOrSamplingFlags result = TraceContextOrSamplingFlags.EMPTY;
+    byte[] traceparent = getter.get(request, TRACEPARENT), tracestate = null;
+    if (traceparent != null) {
+      tracestate = getter.get(request, TRACESTATE);
+      if (tracestate != null) {
+        TraceContext maybeUpstream = cacheLastTraceparent
+          ? traceparentFormat.parseOrLast(traceparent)
+          : traceparentFormat.parse(traceparent, 0, traceparent.length);
+        if (maybeUpstream != null) { // only read when traceparent is valid
+          result = delegate.extract(maybeUpstream, new AsciiSequence(tracestate), found);
+        }
+      }
+    }
+    return delegate.fallbackAndRecord(request, traceparent, tracestate, found, result, event);
+  }
+
+  /** B3 headers can have non-ASCII values, such as baggage, so are decoded as UTF-8. */
+  static final class Utf8Getter<R> implements Getter<R, String> {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final BytesGetter<R> delegate;
+
+    Utf8Getter(BytesGetter<R> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public String get(R request, String key) {
+      byte[] value = delegate.get(request, key);
+      return value != null ? new String(value, UTF_8) : null;
+    }
+  }
+}
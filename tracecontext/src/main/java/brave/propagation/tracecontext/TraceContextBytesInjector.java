@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.internal.Nullable;
+import brave.propagation.B3SingleFormat;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Injector;
+import brave.propagation.tracecontext.TraceContextPropagation.BytesSetter;
+
+import static brave.propagation.tracecontext.TraceContextPropagation.TRACEPARENT;
+import static brave.propagation.tracecontext.TraceContextPropagation.TRACESTATE;
+
+/** Like {@link TraceContextInjector}, except writes each header value directly into bytes. */
+final class TraceContextBytesInjector<R> implements Injector<R> {
+  final BytesSetter<R> setter;
+  final TraceparentFormat traceparentFormat;
+  final String tracestateKey;
+  final int tracestateMaxLength;
+  @Nullable final TraceContextMetrics metrics;
+
+  TraceContextBytesInjector(TraceContextPropagation propagation, BytesSetter<R> setter) {
+    this.setter = setter;
+    this.traceparentFormat = propagation.traceparentFormat;
+    this.tracestateKey = propagation.tracestateKey;
+    this.tracestateMaxLength = propagation.tracestateMaxLength;
+    this.metrics = propagation.metrics;
+  }
+
+  @Override public void inject(TraceContext context, R request) {
+    Object event = FlightRecorderEvents.beginInject();
+    byte[] traceparent = traceparentFormat.writeAsBytes(context);
+    setter.put(request, TRACEPARENT, traceparent);
+    byte[] tracestate = tracestate(context);
+    setter.put(request, TRACESTATE, tracestate);
+    if (metrics != null) metrics.injected(tracestate.length);
+    if (event != null) {
+      FlightRecorderEvents.commitInject(event, traceparent.length, tracestate.length);
+    }
+  }
+
+  /** Same as {@link Tracestate#stateString(String, String, int)}, except in bytes. */
+  byte[] tracestate(TraceContext context) {
+    byte[] b3 = B3SingleFormat.writeB3SingleFormatAsBytes(context);
+    int length = tracestateKey.length() + 1 + b3.length;
+    Tracestate tracestate = context.findExtra(Tracestate.class);
+    String tail = tracestate != null ? tracestate.tail(tracestateMaxLength - length) : "";
+
+    byte[] result = new byte[length + tail.length()];
+    int pos = writeAscii(tracestateKey, result, 0);
+    result[pos++] = '=';
+    System.arraycopy(b3, 0, result, pos, b3.length);
+    writeAscii(tail, result, pos + b3.length);
+    return result;
+  }
+
+  static int writeAscii(String value, byte[] result, int offset) {
+    for (int i = 0, length = value.length(); i < length; i++) {
+      result[offset++] = (byte) value.charAt(i);
+    }
+    return offset;
+  }
+}
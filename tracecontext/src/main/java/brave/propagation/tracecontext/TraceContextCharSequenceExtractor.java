@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.propagation.Propagation.Getter;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.propagation.tracecontext.TraceContextPropagation.CharSequenceGetter;
+import brave.propagation.tracecontext.TracestateFormat.ScanResult;
+
+import static brave.propagation.tracecontext.TraceContextPropagation.TRACEPARENT;
+import static brave.propagation.tracecontext.TraceContextPropagation.TRACESTATE;
+
+/**
+ * Parses {@code traceparent} and validates {@code tracestate} from the character sequences of the
+ * carrier. A string is only made when other {@code tracestate} entries need to be kept.
+ */
+final class TraceContextCharSequenceExtractor<R> implements Extractor<R> {
+  final CharSequenceGetter<R> getter;
+  final TraceparentFormat traceparentFormat;
+  final boolean cacheLastTraceparent;
+  final TraceContextExtractor<R> delegate;
+
+  TraceContextCharSequenceExtractor(TraceContextPropagation propagation,
+    CharSequenceGetter<R> getter) {
+    this.getter = getter;
+    this.traceparentFormat = propagation.traceparentFormat;
+    this.cacheLastTraceparent = propagation.cacheLastTraceparent;
+    // B3 fallback reads through the delegate, so it needs a getter of strings.
+    this.delegate = new TraceContextExtractor<R>(propagation, new StringGetter<R>(getter));
+  }
+
+  @Override public TraceContextOrSamplingFlags extract(R request) {
+    if (request == null) throw new NullPointerException("request == null");
+    Object event = FlightRecorderEvents.beginExtract();
+    ScanResult found = delegate.newScanResult(event);
+
+    // Same as TraceContextExtractor: both headers must be present, and traceparent must be valid.
+    TraceContextOrSamplingFlags result = TraceContextOrSamplingFlags.EMPTY;
+    CharSequence traceparent = getter.get(request, TRACEPARENT), tracestate = null;
+    if (traceparent != null) {
+      tracestate = getter.get(request, TRACESTATE);
+      if (tracestate != null) {
+        TraceContext maybeUpstream = cacheLastTraceparent && traceparent instanceof String
+          ? traceparentFormat.parseOrLast((String) traceparent)
+          : traceparentFormat.parse(traceparent, 0, traceparent.length());
+        if (maybeUpstream != null) result = delegate.extract(maybeUpstream, tracestate, found);
+      }
+    }
+    return delegate.fallbackAndRecord(request, traceparent, tracestate, found, result, event);
+  }
+
+  static final class StringGetter<R> implements Getter<R, String> {
+    final CharSequenceGetter<R> delegate;
+
+    StringGetter(CharSequenceGetter<R> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public String get(R request, String key) {
+      CharSequence value = delegate.get(request, key);
+      return value != null ? value.toString() : null;
+    }
+  }
+}
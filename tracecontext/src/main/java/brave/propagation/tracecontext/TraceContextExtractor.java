@@ -13,32 +13,62 @@
  */
 package brave.propagation.tracecontext;
 
+import brave.internal.Nullable;
+import brave.propagation.B3Propagation;
 import brave.propagation.Propagation.Getter;
 import brave.propagation.TraceContext;
 import brave.propagation.TraceContext.Extractor;
 import brave.propagation.TraceContextOrSamplingFlags;
-import java.util.Arrays;
+import brave.propagation.tracecontext.TraceContextPropagation.BatchExtractor;
+import brave.propagation.tracecontext.TracestateCache.Scanned;
+import brave.propagation.tracecontext.TracestateFormat.ScanResult;
+import brave.propagation.tracecontext.TracestateKeyMatcher.TracestateIndex;
+import java.util.List;
 
 import static brave.propagation.B3SingleFormat.parseB3SingleFormat;
 import static brave.propagation.tracecontext.TraceContextPropagation.TRACEPARENT;
 import static brave.propagation.tracecontext.TraceContextPropagation.TRACESTATE;
-import static brave.propagation.tracecontext.internal.CharSequences.withoutSubSequence;
+import static brave.propagation.tracecontext.Tracestate.beginEntry;
+import static brave.propagation.tracecontext.Tracestate.endEntry;
+import static brave.propagation.tracecontext.Tracestate.isOnlyEntry;
+import static brave.propagation.tracecontext.Tracestate.withoutThisEntry;
+import static brave.propagation.tracecontext.TracestateFormat.MALFORMED;
+import static brave.propagation.tracecontext.TracestateFormat.NO_ENTRY;
+
+final class TraceContextExtractor<R> implements BatchExtractor<R> {
+  static final String B3 = "b3";
 
-final class TraceContextExtractor<R> implements Extractor<R> {
   final Getter<R, String> getter;
   final TraceparentFormat traceparentFormat;
   final TracestateFormat tracestateFormat;
   final String tracestateKey;
+  final boolean cacheLastTraceparent, lazyTracestate, tracestateEarlyExit;
+  @Nullable final TracestateCache tracestateCache;
+  @Nullable final TracestateKeyMatcher tracestateKeyMatcher;
+  @Nullable final Extractor<R> b3MultiExtractor;
+  @Nullable final TraceContextMetrics metrics;
+  final MetricsRecorder metricsRecorder;
 
   TraceContextExtractor(TraceContextPropagation propagation, Getter<R, String> getter) {
     this.getter = getter;
     this.traceparentFormat = propagation.traceparentFormat;
     this.tracestateFormat = propagation.tracestateFormat;
     this.tracestateKey = propagation.tracestateKey;
+    this.cacheLastTraceparent = propagation.cacheLastTraceparent;
+    this.lazyTracestate = propagation.lazyTracestate;
+    this.tracestateEarlyExit = propagation.tracestateEarlyExit;
+    this.tracestateCache = propagation.tracestateCache;
+    this.tracestateKeyMatcher = propagation.tracestateKeyMatcher;
+    this.b3MultiExtractor = propagation.b3Fallback
+      ? B3Propagation.get().extractor(new B3MultiGetter<R>(getter))
+      : null;
+    this.metrics = propagation.metrics;
+    this.metricsRecorder = propagation.metricsRecorder;
   }
 
   @Override public TraceContextOrSamplingFlags extract(R request) {
     if (request == null) throw new NullPointerException("request == null");
+    Object event = FlightRecorderEvents.beginExtract();
 
     // Below implies both headers must be present or all is invalid
     //
@@ -46,19 +76,139 @@ final class TraceContextExtractor<R> implements Extractor<R> {
     // https://www.w3.org/TR/trace-context/#design-overview
     // If a tracestate header is received without an accompanying traceparent header, it is invalid and MUST be discarded.
     // https://www.w3.org/TR/trace-context/#no-traceparent-received
-    String traceparentString = getter.get(request, TRACEPARENT);
-    if (traceparentString == null) return TraceContextOrSamplingFlags.EMPTY;
-    String tracestateString = getter.get(request, TRACESTATE);
-    if (tracestateString == null) return TraceContextOrSamplingFlags.EMPTY;
+    TraceContextOrSamplingFlags result = TraceContextOrSamplingFlags.EMPTY;
+    ScanResult found = newScanResult(event);
+    String traceparentString = getter.get(request, TRACEPARENT), tracestateString = null;
+    if (traceparentString != null) {
+      tracestateString = getter.get(request, TRACESTATE);
+      if (tracestateString != null) result = extract(traceparentString, tracestateString, found);
+    }
+    return fallbackAndRecord(request, traceparentString, tracestateString, found, result, event);
+  }
+
+  /**
+   * Returns what scanning {@code tracestate} should fill in, or null when neither indexing nor
+   * recording the extraction needs it.
+   *
+   * @param event from {@link FlightRecorderEvents#beginExtract()}
+   */
+  @Nullable ScanResult newScanResult(@Nullable Object event) {
+    // The cache indexes values itself, unless lazy, as then it isn't used.
+    TracestateKeyMatcher matcher =
+      tracestateCache == null || lazyTracestate ? tracestateKeyMatcher : null;
+    if (metrics != null || event != null) {
+      MetricsRecorder.beginExtract();
+      return new ScanResult(matcher);
+    }
+    return matcher != null ? new ScanResult(matcher) : null;
+  }
 
+  /**
+   * Falls back to B3 when enabled, and reports the outcome when metrics are.
+   *
+   * @param tracestate a {@link CharSequence} or {@code byte[]}, or null if absent or not read
+   * @param found      from {@link #newScanResult(Object)}
+   * @param event      from {@link FlightRecorderEvents#beginExtract()}
+   */
+  TraceContextOrSamplingFlags fallbackAndRecord(R request, @Nullable Object traceparent,
+    @Nullable Object tracestate, @Nullable ScanResult found, TraceContextOrSamplingFlags result,
+    @Nullable Object event) {
+    boolean fromB3 = false;
+    if (result == TraceContextOrSamplingFlags.EMPTY && b3MultiExtractor != null) {
+      result = extractB3(request);
+      fromB3 = result != TraceContextOrSamplingFlags.EMPTY;
+    }
+    record(traceparent, tracestate, found, result, fromB3, event);
+    return result;
+  }
+
+  /** Only does work when metrics or the event are present, which is when {@code found} is. */
+  void record(@Nullable Object traceparent, @Nullable Object tracestate,
+    @Nullable ScanResult found, TraceContextOrSamplingFlags result, boolean fromB3,
+    @Nullable Object event) {
+    if (metrics != null) {
+      metricsRecorder.extracted(metrics, traceparent, tracestate, found, result, fromB3);
+    }
+    if (event != null) {
+      FlightRecorderEvents.commitExtract(event, metricsRecorder, traceparent, tracestate, found,
+        result, fromB3);
+    }
+  }
+
+  @Override public void extractAll(List<? extends R> requests,
+    TraceContextOrSamplingFlags[] results) {
+    if (requests == null) throw new NullPointerException("requests == null");
+    if (results == null) throw new NullPointerException("results == null");
+    if (results.length < requests.size()) {
+      throw new IllegalArgumentException("results.length < requests.size()");
+    }
+    String lastTraceparent = null, lastTracestate = null;
+    TraceContextOrSamplingFlags last = null; // only set when parsed from trace context headers
+    ScanResult lastFound = null;
+    int i = 0;
+    for (R request : requests) {
+      if (request == null) throw new NullPointerException("requests[" + i + "] == null");
+      Object event = FlightRecorderEvents.beginExtract();
+      ScanResult found = newScanResult(event);
+      TraceContextOrSamplingFlags result = TraceContextOrSamplingFlags.EMPTY;
+      String traceparentString = getter.get(request, TRACEPARENT);
+      String tracestateString =
+        traceparentString != null ? getter.get(request, TRACESTATE) : null;
+      if (tracestateString != null) {
+        if (last != null && traceparentString.equals(lastTraceparent)
+          && tracestateString.equals(lastTracestate)) {
+          result = last;
+          found = lastFound;
+        } else {
+          result = extract(traceparentString, tracestateString, found);
+        }
+      }
+
+      if (result != TraceContextOrSamplingFlags.EMPTY) {
+        last = result;
+        lastFound = found;
+        lastTraceparent = traceparentString;
+        lastTracestate = tracestateString;
+        record(traceparentString, tracestateString, found, result, false, event);
+      } else {
+        last = null;
+        result = fallbackAndRecord(request, traceparentString, tracestateString, found, result,
+          event);
+      }
+      results[i++] = result;
+    }
+  }
+
+  /**
+   * Falls back to B3, reading each header once. The single format is tried before the multiple
+   * header format, the same as B3Propagation does.
+   */
+  TraceContextOrSamplingFlags extractB3(R request) {
+    String b3String = getter.get(request, B3);
+    if (b3String != null) {
+      TraceContextOrSamplingFlags result = parseB3SingleFormat(b3String);
+      if (result != null) return result;
+    }
+    return b3MultiExtractor.extract(request);
+  }
+
+  TraceContextOrSamplingFlags extract(String traceparentString, String tracestateString,
+    @Nullable ScanResult found) {
     // Below implies traceparent must be valid or all is invalid.
     //
     // If the vendor failed to parse traceparent, it MUST NOT attempt to parse tracestate.
     // Note that the opposite is not true: failure to parse tracestate MUST NOT affect the parsing of traceparent.
     // https://www.w3.org/TR/trace-context/#tracestate-header
-    TraceContext maybeUpstream = traceparentFormat.parse(traceparentString);
+    TraceContext maybeUpstream = cacheLastTraceparent
+      ? traceparentFormat.parseOrLast(traceparentString)
+      : traceparentFormat.parse(traceparentString);
     if (maybeUpstream == null) return TraceContextOrSamplingFlags.EMPTY;
+    return extract(maybeUpstream, tracestateString, found);
+  }
 
+  /** @param found from {@link #newScanResult(Object)} */
+  TraceContextOrSamplingFlags extract(TraceContext maybeUpstream, String tracestateString,
+    @Nullable ScanResult found) {
     // The spec is vague about tracestate handling. We are allowed to parse, ignore or toss it.
     // This implementation chooses to toss a malformed tracestate header.
     //
@@ -68,9 +218,63 @@ final class TraceContextExtractor<R> implements Extractor<R> {
     // https://www.w3.org/TR/trace-context/#a-traceparent-is-received
     // failure to parse tracestate MUST NOT affect the parsing of traceparent.
     // https://www.w3.org/TR/trace-context/#tracestate-header
-    int[] indices = new int[6];
-    Arrays.fill(indices, -1);
-    if (!tracestateFormat.parseInto(tracestateString, indices)) {
+    long thisEntry;
+    int[] valueOffsets = null;
+    if (tracestateCache != null && !lazyTracestate) {
+      Scanned scanned = tracestateCache.scan(tracestateFormat, tracestateString,
+        tracestateKeyMatcher, metrics);
+      thisEntry = scanned.thisEntry;
+      valueOffsets = scanned.valueOffsets;
+      if (found != null) {
+        found.thisEntry = thisEntry;
+        found.entryCount = scanned.entryCount;
+      }
+    } else if (tracestateKeyMatcher != null) {
+      // Indexed values are only trusted from a valid header, so even lazy extraction validates it.
+      thisEntry = tracestateFormat.scan(tracestateString, tracestateEarlyExit, found);
+      valueOffsets = found.valueOffsets;
+      if (lazyTracestate && thisEntry == MALFORMED) { // keep our entry, as when not indexing
+        valueOffsets = null;
+        thisEntry = found.thisEntry = tracestateFormat.findThisEntry(tracestateString);
+      }
+    } else if (lazyTracestate) {
+      // Only find our entry now. Other entries are validated when the injector needs them.
+      thisEntry = tracestateFormat.findThisEntry(tracestateString);
+      if (found != null) found.thisEntry = thisEntry;
+    } else {
+      thisEntry = tracestateFormat.scan(tracestateString, tracestateEarlyExit, found);
+    }
+    return extract(maybeUpstream, tracestateString, thisEntry, valueOffsets);
+  }
+
+  /**
+   * Like {@link #extract(TraceContext, String)}, except the header can be any character sequence.
+   * It is only copied into a string when there are entries besides ours, as {@link Tracestate}
+   * keeps them after the carrier may have reused its characters.
+   */
+  TraceContextOrSamplingFlags extract(TraceContext maybeUpstream, CharSequence tracestate,
+    @Nullable ScanResult found) {
+    if (tracestate instanceof String) return extract(maybeUpstream, (String) tracestate, found);
+    if (lazyTracestate || tracestateCache != null) { // these keep the header, so need a string
+      return extract(maybeUpstream, tracestate.toString(), found);
+    }
+
+    long thisEntry = tracestateFormat.scan(tracestate, tracestateEarlyExit, found);
+    if (thisEntry == MALFORMED) return TraceContextOrSamplingFlags.EMPTY;
+    if (thisEntry != NO_ENTRY && isOnlyEntry(tracestate, thisEntry)) {
+      // The usual case when the caller uses this library: there is nothing else to keep.
+      TraceContextOrSamplingFlags fromB3Entry = parseB3Entry(tracestate, thisEntry);
+      if (fromB3Entry == null) return TraceContextOrSamplingFlags.EMPTY;
+      return fromB3Entry.toBuilder().addExtra(Tracestate.empty(tracestateKey)).build();
+    }
+    // offsets are the same
+    return extract(maybeUpstream, tracestate.toString(), thisEntry,
+      found != null ? found.valueOffsets : null);
+  }
+
+  TraceContextOrSamplingFlags extract(TraceContext maybeUpstream, String tracestateString,
+    long thisEntry, @Nullable int[] valueOffsets) {
+    if (thisEntry == MALFORMED) {
       return TraceContextOrSamplingFlags.EMPTY; // malformed per tracestate spec
     }
 
@@ -79,27 +283,47 @@ final class TraceContextExtractor<R> implements Extractor<R> {
     // our entry. Otherwise, we will try the same trace ID from traceparent.
 
     // First check if our entry is inside tracestate. If so, we ignore traceparent when well-formed.
-    if (indices[1] != -1) {
-      TraceContextOrSamplingFlags fromB3Entry =
-        parseB3SingleFormat(tracestateString, indices[3], indices[4]);
+    if (thisEntry != NO_ENTRY) {
+      TraceContextOrSamplingFlags fromB3Entry = parseB3Entry(tracestateString, thisEntry);
       if (fromB3Entry == null) return TraceContextOrSamplingFlags.EMPTY; // malformed per B3 spec
-      Tracestate tracestate = Tracestate.create(withoutB3(tracestateString, indices));
+      Tracestate tracestate = newTracestate(tracestateString, thisEntry, valueOffsets);
       return fromB3Entry.toBuilder().addExtra(tracestate).build();
     }
 
     // Finally, we have a valid traceparent and a possibly empty tracestate lacking our entry.
     // We trust the traceparent as a part of our system and carry forward tracestate we received.
     return TraceContextOrSamplingFlags.newBuilder(maybeUpstream)
-      .addExtra(Tracestate.create(tracestateString))
+      .addExtra(newTracestate(tracestateString, thisEntry, valueOffsets))
       .build();
   }
 
-  static CharSequence withoutB3(String tracestateString, int[] indices) {
-    if (indices[0] == -1 && indices[5] == -1) return "";
+  @Nullable TraceContextOrSamplingFlags parseB3Entry(CharSequence tracestate, long thisEntry) {
+    int beginValue = beginEntry(thisEntry) + tracestateKey.length() + 1;
+    return parseB3SingleFormat(tracestate, beginValue, endEntry(thisEntry));
+  }
+
+  Tracestate newTracestate(String tracestateString, long thisEntry,
+    @Nullable int[] valueOffsets) {
+    TracestateIndex index = valueOffsets != null
+      ? tracestateKeyMatcher.index(tracestateString, valueOffsets)
+      : null;
+    if (lazyTracestate) return Tracestate.createUnparsed(tracestateFormat, tracestateString, index);
+    return Tracestate.create(tracestateKey,
+      thisEntry != NO_ENTRY ? withoutThisEntry(tracestateString, thisEntry) : tracestateString,
+      index);
+  }
 
-    int firstIndexToSkip = indices[0] != -1 ? tracestateString.indexOf(',', indices[0]) : 0;
-    if (indices[4] != tracestateString.length() && firstIndexToSkip != 0) firstIndexToSkip++;
-    return withoutSubSequence(tracestateString, firstIndexToSkip,
-      indices[5] != -1 ? indices[5] : indices[4]);
+  /** Hides the "b3" header from {@link B3Propagation}, as we already tried to parse it. */
+  static final class B3MultiGetter<R> implements Getter<R, String> {
+    final Getter<R, String> delegate;
+
+    B3MultiGetter(Getter<R, String> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public String get(R request, String key) {
+      if (B3.equals(key)) return null;
+      return delegate.get(request, key);
+    }
   }
 }
@@ -13,35 +13,89 @@
  */
 package brave.propagation.tracecontext;
 
-import brave.propagation.B3SingleFormat;
+import brave.internal.Nullable;
 import brave.propagation.Propagation.Setter;
 import brave.propagation.TraceContext;
 import brave.propagation.TraceContext.Injector;
 
+import static brave.internal.codec.HexCodec.writeHexLong;
 import static brave.propagation.tracecontext.TraceContextPropagation.TRACEPARENT;
 import static brave.propagation.tracecontext.TraceContextPropagation.TRACESTATE;
+import static brave.propagation.tracecontext.TraceparentFormat.FORMAT_LENGTH;
 
+/**
+ * Renders both header values into one thread-local buffer, then copies each into a string. The
+ * trace and span IDs are only encoded once, as our {@code tracestate} entry copies them from the
+ * {@code traceparent} just written.
+ */
 final class TraceContextInjector<R> implements Injector<R> {
+  // Offsets of IDs in "00-traceidhigh-traceid-spanid-01", which are copied into the B3 entry.
+  static final int TRACE_ID_HIGH_OFFSET = 3, TRACE_ID_OFFSET = 19, SPAN_ID_OFFSET = 35;
+
   final Setter<R, String> setter;
   final TraceparentFormat traceparentFormat;
   final String tracestateKey;
+  final char[] tracestatePrefix; // "key="
+  final int tracestateMaxLength;
+  @Nullable final TraceContextMetrics metrics;
 
   TraceContextInjector(TraceContextPropagation propagation, Setter<R, String> setter) {
     this.setter = setter;
     this.traceparentFormat = propagation.traceparentFormat;
     this.tracestateKey = propagation.tracestateKey;
+    this.tracestatePrefix = (tracestateKey + "=").toCharArray();
+    this.tracestateMaxLength = propagation.tracestateMaxLength;
+    this.metrics = propagation.metrics;
   }
 
   @Override public void inject(TraceContext context, R request) {
-    setter.put(request, TRACEPARENT, traceparentFormat.write(context));
+    Object event = FlightRecorderEvents.beginInject();
+    int thisEntryLength = tracestatePrefix.length + b3Length(context);
     Tracestate tracestate = context.findExtra(Tracestate.class);
+    String tail = tracestate != null ? tracestate.tail(tracestateMaxLength - thisEntryLength) : "";
+    int tracestateLength = thisEntryLength + tail.length();
+    char[] buffer = TraceparentFormat.getCharBuffer(FORMAT_LENGTH + tracestateLength);
+
+    traceparentFormat.write(context, buffer, 0);
+    int pos = FORMAT_LENGTH;
+    System.arraycopy(tracestatePrefix, 0, buffer, pos, tracestatePrefix.length);
+    pos = writeB3(context, buffer, pos + tracestatePrefix.length);
+    tail.getChars(0, tail.length(), buffer, pos);
+
+    setter.put(request, TRACEPARENT, new String(buffer, 0, FORMAT_LENGTH));
+    setter.put(request, TRACESTATE, new String(buffer, FORMAT_LENGTH, tracestateLength));
+    if (metrics != null) metrics.injected(tracestateLength);
+    if (event != null) FlightRecorderEvents.commitInject(event, FORMAT_LENGTH, tracestateLength);
+  }
+
+  /** Returns the length of the B3 single format, which only includes fields that are set. */
+  static int b3Length(TraceContext context) {
+    int length = context.traceIdHigh() != 0L ? 32 + 17 : 16 + 17; // trace ID, then "-spanid"
+    if (context.sampled() != null) length += 2;
+    if (context.parentIdAsLong() != 0L) length += 17;
+    return length;
+  }
 
-    // TODO: char buffer to reduce allocations in tracestate.stateString
-    String b3 = B3SingleFormat.writeB3SingleFormat(context);
-    if (tracestate != null) {
-      setter.put(request, TRACESTATE, tracestate.stateString(tracestateKey, b3));
-    } else {
-      setter.put(request, TRACESTATE, tracestateKey + "=" + b3);
+  /**
+   * Same as {@code B3SingleFormat.writeB3SingleFormat}, except IDs are copied from the {@code
+   * traceparent} at the start of the buffer, instead of encoded again.
+   */
+  static int writeB3(TraceContext context, char[] buffer, int pos) {
+    int beginTraceId = context.traceIdHigh() != 0L ? TRACE_ID_HIGH_OFFSET : TRACE_ID_OFFSET;
+    int length = SPAN_ID_OFFSET + 17 - beginTraceId; // through "-spanid"
+    System.arraycopy(buffer, beginTraceId, buffer, pos, length);
+    pos += length;
+    Boolean sampled = context.sampled();
+    if (sampled != null) {
+      buffer[pos++] = '-';
+      buffer[pos++] = context.debug() ? 'd' : sampled ? '1' : '0';
+    }
+    long parentId = context.parentIdAsLong();
+    if (parentId != 0L) {
+      buffer[pos++] = '-';
+      writeHexLong(buffer, pos, parentId);
+      pos += 16;
     }
+    return pos;
   }
 }
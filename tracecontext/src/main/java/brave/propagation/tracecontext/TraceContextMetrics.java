@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+/**
+ * Receives the outcome of each extraction and injection, when set with {@link
+ * TraceContextPropagation.FactoryBuilder#metrics(TraceContextMetrics)}. When unset, nothing is
+ * recorded or computed.
+ *
+ * <p>Methods are called on the request thread, so implementations must be thread-safe and cheap.
+ * {@link CountingTraceContextMetrics} is one, which keeps counters for a metrics system to
+ * poll. Methods do nothing by default, so that implementations only override what they need.
+ */
+public abstract class TraceContextMetrics {
+  /** Where the trace context of a successful extraction was read from. */
+  public enum Source {
+    /** Our entry in the {@code tracestate} header, which is favored over {@code traceparent}. */
+    B3_ENTRY,
+    /** The {@code traceparent} header, as {@code tracestate} had no entry of ours. */
+    TRACEPARENT,
+    /** B3 headers, when {@link TraceContextPropagation.FactoryBuilder#b3Fallback(boolean)}. */
+    B3
+  }
+
+  /** Called when trace context was extracted from the given source. */
+  public void extracted(Source source) {
+  }
+
+  /** Called when the request had no headers to extract trace context from. */
+  public void extractedNothing() {
+  }
+
+  /**
+   * Called when trace context headers were present, but couldn't be extracted. This is called
+   * even when B3 fallback then succeeds, which also calls {@link #extracted(Source)}.
+   *
+   * @param reason the same message as logged, such as "Invalid input: trace ID is too short". The
+   *               set of reasons is small and fixed, so they are safe to use as metric tags.
+   */
+  public void extractFailed(String reason) {
+  }
+
+  /**
+   * Called for each {@code tracestate} header that accompanies {@code traceparent}, whether or not
+   * extraction succeeds.
+   *
+   * @param length     the count of characters in the header
+   * @param entryCount the count of entries, including ours, or -1 if they weren't all counted.
+   *                   Entries are only counted as the header is validated, so not when {@code
+   *                   traceparent} is invalid, nor past a malformed entry. Neither are entries
+   *                   skipped by {@code lazyTracestate} or {@code tracestateEarlyExit}.
+   */
+  public void tracestateReceived(int length, int entryCount) {
+  }
+
+  /**
+   * Called for each {@code tracestate} header looked up in the cache, when {@link
+   * TraceContextPropagation.FactoryBuilder#tracestateCacheSize(int)} is set. Use the ratio of hits
+   * to tune the size of the cache.
+   *
+   * @param hit true when validation was skipped, as the header or its entries besides ours were
+   *            cached
+   */
+  public void tracestateCached(boolean hit) {
+  }
+
+  /**
+   * Called after trace context headers are injected.
+   *
+   * @param tracestateLength the count of characters in the injected {@code tracestate} header
+   */
+  public void injected(int tracestateLength) {
+  }
+}
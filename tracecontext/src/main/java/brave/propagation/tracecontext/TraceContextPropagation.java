@@ -13,20 +13,35 @@
  */
 package brave.propagation.tracecontext;
 
+import brave.internal.Nullable;
+import brave.propagation.B3Propagation;
 import brave.propagation.Propagation;
 import brave.propagation.TraceContext;
 import brave.propagation.TraceContext.Extractor;
 import brave.propagation.TraceContext.Injector;
+import brave.propagation.TraceContextOrSamplingFlags;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
-import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 import static java.util.Arrays.asList;
 
 public final class TraceContextPropagation implements Propagation<String> {
   public static final String TRACEPARENT = "traceparent", TRACESTATE = "tracestate";
+  /**
+   * System property which, when a positive count of seconds, limits logging of malformed headers.
+   * Each failure reason is logged the first time it occurs in the interval. Repeats are counted and
+   * logged as one summary per reason with the first failure after the interval.
+   *
+   * <p>Failures are only logged at fine level, so this has no effect unless that is enabled.
+   */
+  public static final String LOG_SUMMARY_INTERVAL_SECONDS =
+    "brave.propagation.tracecontext.logSummaryIntervalSeconds";
   public static final Propagation.Factory FACTORY = new Factory(newFactoryBuilder());
   static final Propagation<String> INSTANCE = FACTORY.get();
 
@@ -41,6 +56,10 @@ public final class TraceContextPropagation implements Propagation<String> {
   public static final class FactoryBuilder {
     static final TracestateFormat THROWING_VALIDATOR = new TracestateFormat("b3", true);
     String tracestateKey = "b3";
+    boolean cacheLastTraceparent, lazyTracestate, tracestateEarlyExit, b3Fallback;
+    int tracestateMaxLength = 512, tracestateCacheSize;
+    final Set<String> indexedTracestateKeys = new LinkedHashSet<String>();
+    @Nullable TraceContextMetrics metrics;
 
     FactoryBuilder() {
     }
@@ -59,7 +78,137 @@ public final class TraceContextPropagation implements Propagation<String> {
       return this;
     }
 
+    /**
+     * When true, each thread remembers the last {@code traceparent} it parsed. When the next
+     * header is the same, the remembered trace context is returned instead of parsing again.
+     * Defaults to false.
+     *
+     * <p>This helps message consumers and fan-out services, which often receive the same header
+     * many times in a row, such as a batch that shares one parent. Otherwise, it is overhead.
+     *
+     * <p>This also applies to {@linkplain #bytesExtractor(BytesGetter) byte array headers}, such
+     * as gRPC metadata, which are compared by content.
+     */
+    public FactoryBuilder cacheLastTraceparent(boolean cacheLastTraceparent) {
+      this.cacheLastTraceparent = cacheLastTraceparent;
+      return this;
+    }
+
+    /**
+     * When true, extraction only looks for our entry in the {@code tracestate} header. Validating
+     * the other entries, and removing ours from them, is deferred until they are needed, usually
+     * when injecting an outbound request. Defaults to false.
+     *
+     * <p>This helps services that rarely make outbound requests, as they no longer pay to parse
+     * entries they never propagate. The tradeoff is that a malformed {@code tracestate} header no
+     * longer invalidates extraction. Instead, the other entries are dropped when next injected.
+     */
+    public FactoryBuilder lazyTracestate(boolean lazyTracestate) {
+      this.lazyTracestate = lazyTracestate;
+      return this;
+    }
+
+    /**
+     * When true, extraction stops validating the {@code tracestate} header once it finds our
+     * entry. Defaults to false.
+     *
+     * <p>Our entry is usually first, as the caller moves its entry to the front when it injects.
+     * This avoids reading the rest of the header, at the cost of propagating any malformed entries
+     * after ours. This has no effect when {@link #lazyTracestate(boolean)} or {@link
+     * #tracestateCacheSize(int)} are set.
+     */
+    public FactoryBuilder tracestateEarlyExit(boolean tracestateEarlyExit) {
+      this.tracestateEarlyExit = tracestateEarlyExit;
+      return this;
+    }
+
+    /**
+     * When true, extraction falls back to B3 when {@code traceparent} or {@code tracestate} are
+     * missing or malformed. The {@code b3} header is tried first, then the multiple header
+     * format, such as {@code X-B3-TraceId}. Defaults to false.
+     *
+     * <p>This allows services to accept requests from callers that only send B3, in a system
+     * moving to trace context. Each header is read at most once, and parsing stops at the first
+     * format that succeeds. This is cheaper than chaining extractors of each propagation, which
+     * would read some headers twice. Injection is not affected.
+     */
+    public FactoryBuilder b3Fallback(boolean b3Fallback) {
+      this.b3Fallback = b3Fallback;
+      return this;
+    }
+
+    /**
+     * The maximum length of the {@code tracestate} header to inject. Defaults to 512, which is the
+     * minimum the specification says to propagate.
+     *
+     * <p>When other entries would exceed this, those larger than 128 characters are dropped, then
+     * those at the end. Our entry is always kept, even if it alone exceeds this.
+     *
+     * <p>See <a href="https://www.w3.org/TR/trace-context/#tracestate-limits">...</a>
+     */
+    public FactoryBuilder tracestateMaxLength(int tracestateMaxLength) {
+      if (tracestateMaxLength <= 0) {
+        throw new IllegalArgumentException("tracestateMaxLength <= 0");
+      }
+      this.tracestateMaxLength = tracestateMaxLength;
+      return this;
+    }
+
+    /**
+     * When positive, the validity of up to this many distinct {@code tracestate} headers is
+     * remembered, evicting the least recently used. Defaults to zero, which disables the cache.
+     *
+     * <p>This helps when the same upstream systems add the same entries, as repeated headers skip
+     * validation. As the value of our entry changes on each request, the other entries are also
+     * remembered without it. Hits and misses are reported to {@link
+     * TraceContextMetrics#tracestateCached(boolean)}, when {@link #metrics(TraceContextMetrics)}
+     * is set.
+     */
+    public FactoryBuilder tracestateCacheSize(int tracestateCacheSize) {
+      if (tracestateCacheSize < 0) {
+        throw new IllegalArgumentException("tracestateCacheSize < 0");
+      }
+      this.tracestateCacheSize = tracestateCacheSize;
+      return this;
+    }
+
+    /**
+     * Adds a key of another system, such as {@code tenant@system}, whose value is read on most
+     * requests. All added keys are found while validating the header on extraction, so that {@link
+     * Tracestate#get(String)} and {@link Tracestate#containsKey(String)} don't search for them.
+     *
+     * <p>Values are only indexed from a valid header. So, when keys are added, {@link
+     * #lazyTracestate(boolean)} still validates the header on extraction, and {@link
+     * #tracestateEarlyExit(boolean)} has no effect.
+     *
+     * @throws IllegalArgumentException if the key doesn't conform to ABNF rules defined by the
+     *                                  <a href="https://www.w3.org/TR/trace-context-1/#key">trace-context
+     *                                  specification</a>.
+     */
+    public FactoryBuilder indexTracestateKey(String key) {
+      if (key == null) throw new NullPointerException("key == null");
+      THROWING_VALIDATOR.validateKey(key, 0, key.length());
+      indexedTracestateKeys.add(key);
+      return this;
+    }
+
+    /**
+     * Receives the outcome of each extraction and injection, such as why a header was malformed.
+     * Defaults to null, which skips all work to compute outcomes.
+     *
+     * @see CountingTraceContextMetrics
+     */
+    public FactoryBuilder metrics(TraceContextMetrics metrics) {
+      if (metrics == null) throw new NullPointerException("metrics == null");
+      this.metrics = metrics;
+      return this;
+    }
+
     public Propagation.Factory build() {
+      if (indexedTracestateKeys.contains(tracestateKey)) {
+        throw new IllegalArgumentException(
+          "indexTracestateKey(" + tracestateKey + ") is the same as tracestateKey");
+      }
       Factory result = new Factory(this);
       if (result.equals(FACTORY)) return FACTORY;
       return result;
@@ -68,9 +217,36 @@ public final class TraceContextPropagation implements Propagation<String> {
 
   static final class Factory extends Propagation.Factory {
     final String tracestateKey;
+    final boolean cacheLastTraceparent, lazyTracestate, tracestateEarlyExit, b3Fallback;
+    final int tracestateMaxLength, tracestateCacheSize;
+    final List<String> indexedTracestateKeys;
+    // Below are derived from fields above and shared by all propagation instances
+    final TracestateFormat tracestateFormat;
+    @Nullable final TracestateCache tracestateCache;
+    @Nullable final TracestateKeyMatcher tracestateKeyMatcher;
+    @Nullable final TraceContextMetrics metrics;
+    final MetricsRecorder metricsRecorder;
 
     Factory(FactoryBuilder builder) {
       this.tracestateKey = builder.tracestateKey;
+      this.tracestateFormat = tracestateKey.equals(TracestateFormat.INSTANCE.thisKey)
+        ? TracestateFormat.INSTANCE
+        : new TracestateFormat(tracestateKey, false);
+      this.indexedTracestateKeys =
+        Collections.unmodifiableList(new ArrayList<String>(builder.indexedTracestateKeys));
+      this.tracestateKeyMatcher = indexedTracestateKeys.isEmpty()
+        ? null
+        : TracestateKeyMatcher.create(indexedTracestateKeys);
+      this.tracestateMaxLength = builder.tracestateMaxLength;
+      this.tracestateCacheSize = builder.tracestateCacheSize;
+      this.tracestateCache =
+        tracestateCacheSize > 0 ? new TracestateCache(tracestateCacheSize) : null;
+      this.cacheLastTraceparent = builder.cacheLastTraceparent;
+      this.lazyTracestate = builder.lazyTracestate;
+      this.tracestateEarlyExit = builder.tracestateEarlyExit;
+      this.b3Fallback = builder.b3Fallback;
+      this.metrics = builder.metrics;
+      this.metricsRecorder = new MetricsRecorder(tracestateFormat.thisKey);
     }
 
     @Override public Propagation<String> get() {
@@ -95,21 +271,66 @@ public final class TraceContextPropagation implements Propagation<String> {
       if (!(o instanceof Factory)) return false;
 
       Factory that = (Factory) o;
-      return tracestateKey.equals(that.tracestateKey);
+      return tracestateKey.equals(that.tracestateKey)
+        && cacheLastTraceparent == that.cacheLastTraceparent
+        && lazyTracestate == that.lazyTracestate
+        && tracestateEarlyExit == that.tracestateEarlyExit
+        && b3Fallback == that.b3Fallback
+        && tracestateMaxLength == that.tracestateMaxLength
+        && tracestateCacheSize == that.tracestateCacheSize
+        && indexedTracestateKeys.equals(that.indexedTracestateKeys)
+        && (metrics == null ? that.metrics == null : metrics.equals(that.metrics));
     }
 
     @Override public int hashCode() {
-      return tracestateKey.hashCode();
+      int h = 1000003;
+      h ^= tracestateKey.hashCode();
+      h *= 1000003;
+      h ^= cacheLastTraceparent ? 1231 : 1237;
+      h *= 1000003;
+      h ^= lazyTracestate ? 1231 : 1237;
+      h *= 1000003;
+      h ^= tracestateEarlyExit ? 1231 : 1237;
+      h *= 1000003;
+      h ^= b3Fallback ? 1231 : 1237;
+      h *= 1000003;
+      h ^= tracestateMaxLength;
+      h *= 1000003;
+      h ^= tracestateCacheSize;
+      h *= 1000003;
+      h ^= indexedTracestateKeys.hashCode();
+      h *= 1000003;
+      h ^= metrics == null ? 0 : metrics.hashCode();
+      return h;
     }
   }
 
   final String tracestateKey;
-  final List<String> keys = Collections.unmodifiableList(asList(TRACEPARENT, TRACESTATE));
+  final boolean cacheLastTraceparent, lazyTracestate, tracestateEarlyExit, b3Fallback;
+  final int tracestateMaxLength;
+  @Nullable final TracestateCache tracestateCache;
+  @Nullable final TracestateKeyMatcher tracestateKeyMatcher;
+  @Nullable final TraceContextMetrics metrics;
+  final MetricsRecorder metricsRecorder;
+  final List<String> keys;
   final TraceparentFormat traceparentFormat = TraceparentFormat.get();
-  final TracestateFormat tracestateFormat = TracestateFormat.get();
+  final TracestateFormat tracestateFormat;
 
   TraceContextPropagation(Factory factory) {
     this.tracestateKey = factory.tracestateKey;
+    this.cacheLastTraceparent = factory.cacheLastTraceparent;
+    this.lazyTracestate = factory.lazyTracestate;
+    this.tracestateEarlyExit = factory.tracestateEarlyExit;
+    this.b3Fallback = factory.b3Fallback;
+    this.tracestateMaxLength = factory.tracestateMaxLength;
+    this.tracestateCache = factory.tracestateCache;
+    this.tracestateKeyMatcher = factory.tracestateKeyMatcher;
+    this.tracestateFormat = factory.tracestateFormat;
+    this.metrics = factory.metrics;
+    this.metricsRecorder = factory.metricsRecorder;
+    List<String> keys = new ArrayList<String>(asList(TRACEPARENT, TRACESTATE));
+    if (b3Fallback) keys.addAll(B3Propagation.get().keys()); // headers we read
+    this.keys = Collections.unmodifiableList(keys);
   }
 
   @Override public List<String> keys() {
@@ -121,36 +342,161 @@ public final class TraceContextPropagation implements Propagation<String> {
     return new TraceContextInjector<R>(this, setter);
   }
 
-  @Override public <R> Extractor<R> extractor(Getter<R, String> getter) {
+  /**
+   * Returns an extractor that can also extract a batch of requests. Like any extractor, build it
+   * once per getter and reuse it.
+   */
+  @Override public <R> BatchExtractor<R> extractor(Getter<R, String> getter) {
     if (getter == null) throw new NullPointerException("getter == null");
     return new TraceContextExtractor<R>(this, getter);
   }
 
+  /** An {@link Extractor} that can also extract a batch of requests. */
+  public interface BatchExtractor<R> extends Extractor<R> {
+    /**
+     * Extracts each request into the same index of {@code results}, such as for the records of a
+     * message consumer batch. This is the same as calling {@link #extract(Object)} for each
+     * request, except cheaper.
+     *
+     * <p>Consecutive requests with the same {@code traceparent} and {@code tracestate} headers
+     * share one result, as is common when a producer sends a batch under one span. The headers
+     * are compared, not parsed again. Results are immutable, so sharing them is safe.
+     *
+     * @throws IllegalArgumentException if {@code results} is shorter than {@code requests}
+     */
+    void extractAll(List<? extends R> requests, TraceContextOrSamplingFlags[] results);
+  }
+
+  /**
+   * Reads header values as bytes, such as Kafka record headers. Values are ASCII, so reading
+   * bytes avoids decoding a {@link String} per header.
+   *
+   * @see #bytesExtractor(BytesGetter)
+   */
+  public interface BytesGetter<R> {
+    /** Returns the last value of the header, or null if absent. */
+    @Nullable byte[] get(R request, String key);
+  }
+
+  /**
+   * Writes header values as bytes, replacing any existing value.
+   *
+   * @see #bytesInjector(BytesSetter)
+   */
+  public interface BytesSetter<R> {
+    void put(R request, String key, byte[] value);
+  }
+
+  /**
+   * Like {@link #extractor(Getter)}, except header values are bytes. The {@code traceparent}
+   * header is parsed directly from its bytes. The {@code tracestate} header is scanned in its bytes,
+   * and only decoded into a {@link String} when it has entries other than ours to keep.
+   */
+  public <R> Extractor<R> bytesExtractor(BytesGetter<R> getter) {
+    if (getter == null) throw new NullPointerException("getter == null");
+    return new TraceContextBytesExtractor<R>(this, getter);
+  }
+
+  /**
+   * Like {@link #injector(Setter)}, except header values are bytes. The {@code traceparent}
+   * header is written with {@link TraceparentFormat#writeAsBytes(TraceContext)}.
+   */
+  public <R> Injector<R> bytesInjector(BytesSetter<R> setter) {
+    if (setter == null) throw new NullPointerException("setter == null");
+    return new TraceContextBytesInjector<R>(this, setter);
+  }
+
+  /**
+   * Reads header values as character sequences, such as Netty's {@code AsciiString} or other
+   * byte-backed header maps. This avoids converting each header into a {@link String}.
+   *
+   * @see #charSequenceExtractor(CharSequenceGetter)
+   */
+  public interface CharSequenceGetter<R> {
+    /** Returns the last value of the header, or null if absent. */
+    @Nullable CharSequence get(R request, String key);
+  }
+
+  /**
+   * Like {@link #extractor(Getter)}, except header values are character sequences. The {@code
+   * traceparent} header is parsed as-is. The {@code tracestate} header is only copied into a
+   * {@link String} when it has entries besides ours, as {@link Tracestate} keeps them.
+   *
+   * <p>Values read for B3 fallback are converted with {@link CharSequence#toString()}.
+   */
+  public <R> Extractor<R> charSequenceExtractor(CharSequenceGetter<R> getter) {
+    if (getter == null) throw new NullPointerException("getter == null");
+    return new TraceContextCharSequenceExtractor<R>(this, getter);
+  }
+
   static boolean logOrThrow(String msg, boolean shouldThrow) {
     if (shouldThrow) throw new IllegalArgumentException(msg);
+    LastFailure.get().set(msg, null);
     Logger logger = LoggerHolder.logger();
     if (!logger.isLoggable(Level.FINE)) return false; // fine level to not fill logs
-    logger.log(Level.FINE, msg);
+    LogSummarizer summarizer = LoggerHolder.summarizer();
+    if (summarizer != null) {
+      summarizer.log(logger, msg, null);
+    } else {
+      logger.log(Level.FINE, msg);
+    }
     return false;
   }
 
   static boolean logOrThrow(String msg, String param1, boolean shouldThrow) {
     if (shouldThrow) throw new IllegalArgumentException(msg.replace("{0}", param1));
+    LastFailure.get().set(msg, param1);
     Logger logger = LoggerHolder.logger();
     if (!logger.isLoggable(Level.FINE)) return false; // fine level to not fill logs
-    LogRecord lr = new LogRecord(Level.FINE, msg);
-    Object[] params = {param1};
-    lr.setParameters(params);
-    logger.log(lr);
+    LogSummarizer summarizer = LoggerHolder.summarizer();
+    if (summarizer != null) {
+      summarizer.log(logger, msg, param1);
+    } else {
+      LogSummarizer.logFirst(logger, msg, param1);
+    }
     return false;
   }
 
+  /**
+   * The message last passed to {@link #logOrThrow} on this thread, whether or not it was logged.
+   * Metrics read this to say why extraction failed, instead of each parsing path returning it.
+   */
+  static final class LastFailure {
+    static final ThreadLocal<LastFailure> LAST_FAILURE = new ThreadLocal<LastFailure>();
+
+    static LastFailure get() {
+      LastFailure result = LAST_FAILURE.get();
+      if (result == null) {
+        result = new LastFailure();
+        LAST_FAILURE.set(result);
+      }
+      return result;
+    }
+
+    @Nullable String msg, param1;
+
+    void set(@Nullable String msg, @Nullable String param1) {
+      this.msg = msg;
+      this.param1 = param1;
+    }
+  }
+
   // Use nested class to ensure logger isn't initialized unless it is accessed once.
   static final class LoggerHolder { // visible for testing
     static final Logger LOG = Logger.getLogger(TraceContextPropagation.class.getName());
+    @Nullable static final LogSummarizer SUMMARIZER = newSummarizer();
 
     static Logger logger() {
       return LOG;
     }
+
+    @Nullable static LogSummarizer summarizer() {
+      return SUMMARIZER;
+    }
+
+    @Nullable static LogSummarizer newSummarizer() {
+      long seconds = Long.getLong(LOG_SUMMARY_INTERVAL_SECONDS, 0L);
+      return seconds > 0 ? new LogSummarizer(seconds, TimeUnit.SECONDS) : null;
+    }
   }
 }
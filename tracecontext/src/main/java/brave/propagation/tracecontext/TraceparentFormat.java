@@ -14,10 +14,12 @@
 package brave.propagation.tracecontext;
 
 import brave.internal.Nullable;
+import brave.internal.codec.HexCodec;
 import brave.propagation.TraceContext;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-
-import static brave.internal.codec.HexCodec.writeHexLong;
+import java.util.Arrays;
 
 /** Implements <a href="https://tracecontext.github.io/trace-context/#traceparent-header">...</a> */
 public final class TraceparentFormat {
@@ -43,9 +45,7 @@ public final class TraceparentFormat {
 
   /** Writes all "traceparent" defined fields in the trace context to a hyphen delimited string. */
   public String write(TraceContext context) {
-    char[] buffer = getCharBuffer();
-    int length = write(context, buffer);
-    return new String(buffer, 0, length);
+    return AsciiStrings.traceparent(this, context);
   }
 
   /**
@@ -53,13 +53,53 @@ public final class TraceparentFormat {
    * example, {@link ByteBuffer#wrap(byte[])} can wrap the result.
    */
   public byte[] writeAsBytes(TraceContext context) {
-    char[] buffer = getCharBuffer();
-    int length = write(context, buffer);
-    return asciiToNewByteArray(buffer, length);
+    byte[] result = new byte[FORMAT_LENGTH];
+    write(context, result, 0);
+    return result;
+  }
+
+  /**
+   * Like {@link #write(TraceContext)}, except writes into a caller-owned buffer. The use-case is
+   * reducing garbage, by encoding directly into an outbound header buffer.
+   *
+   * @param result the buffer to write into, which needs at least 55 characters after the offset.
+   * @param offset the index of {@code result} to write the first character to.
+   * @return the count of characters written
+   * @throws IndexOutOfBoundsException if the result cannot hold the encoded trace context.
+   */
+  public int write(TraceContext context, char[] result, int offset) {
+    checkWritable(result.length, offset);
+    int pos = offset;
+    result[pos++] = '0';
+    result[pos++] = '0';
+    result[pos++] = '-';
+    long traceIdHigh = context.traceIdHigh();
+    HexCodec.writeHexLong(result, pos, traceIdHigh);
+    pos += 16;
+    HexCodec.writeHexLong(result, pos, context.traceId());
+    pos += 16;
+    result[pos++] = '-';
+    HexCodec.writeHexLong(result, pos, context.spanId());
+    pos += 16;
+
+    result[pos++] = '-';
+    result[pos++] = '0';
+    result[pos++] = Boolean.TRUE.equals(context.sampled()) ? '1' : '0';
+
+    return pos - offset;
   }
 
-  int write(TraceContext context, char[] result) {
-    int pos = 0;
+  /**
+   * Like {@link #write(TraceContext, char[], int)}, except writes ASCII bytes.
+   *
+   * @param result the buffer to write into, which needs at least 55 bytes after the offset.
+   * @param offset the index of {@code result} to write the first byte to.
+   * @return the count of bytes written
+   * @throws IndexOutOfBoundsException if the result cannot hold the encoded trace context.
+   */
+  public int write(TraceContext context, byte[] result, int offset) {
+    checkWritable(result.length, offset);
+    int pos = offset;
     result[pos++] = '0';
     result[pos++] = '0';
     result[pos++] = '-';
@@ -74,9 +114,59 @@ public final class TraceparentFormat {
 
     result[pos++] = '-';
     result[pos++] = '0';
-    result[pos++] = Boolean.TRUE.equals(context.sampled()) ? '1' : '0';
+    result[pos++] = (byte) (Boolean.TRUE.equals(context.sampled()) ? '1' : '0');
 
-    return pos;
+    return pos - offset;
+  }
+
+  /**
+   * Like {@link #write(TraceContext, byte[], int)}, except writes at the current position of the
+   * buffer, advancing it by the count of bytes written.
+   *
+   * @return the count of bytes written
+   * @throws BufferOverflowException if there are fewer than 55 bytes remaining in the buffer.
+   */
+  public int write(TraceContext context, ByteBuffer result) {
+    if (result.remaining() < FORMAT_LENGTH) throw new BufferOverflowException();
+    int length;
+    if (result.hasArray()) {
+      length = write(context, result.array(), result.arrayOffset() + result.position());
+      result.position(result.position() + length);
+    } else {
+      char[] buffer = getCharBuffer();
+      length = write(context, buffer, 0);
+      for (int i = 0; i < length; i++) {
+        result.put((byte) buffer[i]);
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Like {@link #write(TraceContext, char[], int)}, except appends to the result. For example, this
+   * can add the value to a {@link StringBuilder} holding other header data.
+   *
+   * @return the count of characters written
+   * @throws IOException when thrown by {@link Appendable#append(char)}
+   */
+  public int write(TraceContext context, Appendable result) throws IOException {
+    char[] buffer = getCharBuffer();
+    int length = write(context, buffer, 0);
+    if (result instanceof StringBuilder) { // avoid a call per character when we can
+      ((StringBuilder) result).append(buffer, 0, length);
+    } else {
+      for (int i = 0; i < length; i++) {
+        result.append(buffer[i]);
+      }
+    }
+    return length;
+  }
+
+  static void checkWritable(int resultLength, int offset) {
+    if (offset < 0) throw new IndexOutOfBoundsException("offset < 0");
+    if (offset > resultLength - FORMAT_LENGTH) {
+      throw new IndexOutOfBoundsException("offset + " + FORMAT_LENGTH + " > result.length");
+    }
   }
 
   @Nullable public TraceContext parse(CharSequence parent) {
@@ -97,8 +187,216 @@ public final class TraceparentFormat {
     return parse(value, beginIndex, endIndex, shouldThrow);
   }
 
+  /**
+   * Like {@link #parse(CharSequence)}, except returns the last result on this thread when the input
+   * is the same. This helps when the same header repeats, such as a batch of messages that share
+   * a parent, as comparing a short string is cheaper than decoding it.
+   *
+   * <p>Only {@link String} input is accepted, as it is immutable. Invalid input isn't remembered,
+   * so it is logged each time.
+   */
+  @Nullable public TraceContext parseOrLast(String value) {
+    if (value == null) throw new NullPointerException("value == null");
+    LastTraceparent last = LAST_TRACEPARENT.get();
+    if (last == null) {
+      last = new LastTraceparent();
+      LAST_TRACEPARENT.set(last);
+    }
+    // Instances are often the same when a header map is re-used, so check identity first.
+    String lastValue = last.value;
+    if (value == lastValue || value.equals(lastValue)) return last.context;
+
+    TraceContext result = parse(value);
+    if (result != null) {
+      last.value = value;
+      last.context = result;
+    }
+    return result;
+  }
+
+  /**
+   * Like {@link #parseOrLast(String)}, except for byte array values. As arrays are mutable, the
+   * input is copied when remembered, and later input is compared by content.
+   */
+  @Nullable TraceContext parseOrLast(byte[] value) {
+    LastTraceparent last = LAST_TRACEPARENT.get();
+    if (last == null) {
+      last = new LastTraceparent();
+      LAST_TRACEPARENT.set(last);
+    }
+    if (Arrays.equals(value, last.bytes)) return last.bytesContext;
+
+    TraceContext result = parse(value, 0, value.length);
+    if (result != null) {
+      last.bytes = value.clone();
+      last.bytesContext = result;
+    }
+    return result;
+  }
+
+  static final class LastTraceparent {
+    String value;
+    TraceContext context;
+    byte[] bytes;
+    TraceContext bytesContext;
+  }
+
+  static final ThreadLocal<LastTraceparent> LAST_TRACEPARENT = new ThreadLocal<LastTraceparent>();
+
+  /**
+   * Like {@link #parse(CharSequence, int, int)}, except for requests with byte array values, such
+   * as Kafka or gRPC headers. This avoids decoding the value into a {@link String} first.
+   *
+   * @param value      the ASCII bytes that contain a {@code traceparent} formatted trace context
+   * @param beginIndex the inclusive begin index: the index of the first byte in {@code traceparent}
+   *                   format.
+   * @param endIndex   the exclusive end index: the index <em>after</em> the last byte in
+   *                   {@code traceparent} format.
+   */
+  @Nullable public TraceContext parse(byte[] value, int beginIndex, int endIndex) {
+    if (value == null) throw new NullPointerException("value == null");
+    return parse(value, beginIndex, endIndex, shouldThrow);
+  }
+
+  /**
+   * Like {@link #parse(byte[], int, int)}, except reads the {@linkplain ByteBuffer#remaining()
+   * remaining bytes} of the buffer. This does not change the position of the buffer.
+   */
+  @Nullable public TraceContext parse(ByteBuffer value) {
+    if (value == null) throw new NullPointerException("value == null");
+    int beginIndex = value.position(), endIndex = value.limit();
+    if (value.hasArray()) { // avoid ByteBuffer.get overhead when we can
+      int arrayOffset = value.arrayOffset();
+      return parse(value.array(), arrayOffset + beginIndex, arrayOffset + endIndex, shouldThrow);
+    }
+    return parse(value, beginIndex, endIndex, shouldThrow);
+  }
+
+  /**
+   * Character input is the common case, so it has its own path, which reads with {@link
+   * CharSequence#charAt(int)} instead of checking the type of input for each character.
+   */
+  @Nullable static TraceContext parse(
+    CharSequence value, int beginIndex, int endIndex, boolean shouldThrow) {
+    if (endIndex - beginIndex == FORMAT_LENGTH) {
+      TraceContext result = parseVersion00(value, beginIndex);
+      if (result != null) return result;
+    }
+    return parseFields(value, beginIndex, endIndex, shouldThrow);
+  }
+
+  /**
+   * Like {@link #parse(CharSequence, int, int, boolean)}, except for bytes. Input that isn't valid
+   * version 00 is decoded before {@link #parseFields(CharSequence, int, int, boolean)}. This only
+   * happens for later versions or malformed input, which is logged anyway.
+   *
+   * @param value a {@code byte[]} or {@link ByteBuffer} that contains a {@code traceparent}
+   *              formatted trace context
+   * @see #charAt(Object, int)
+   */
   @Nullable
-  static TraceContext parse(CharSequence value, int beginIndex, int endIndex, boolean shouldThrow) {
+  static TraceContext parse(Object value, int beginIndex, int endIndex, boolean shouldThrow) {
+    if (endIndex - beginIndex == FORMAT_LENGTH) {
+      TraceContext result = parseVersion00(value, beginIndex);
+      if (result != null) return result;
+    }
+    String decoded;
+    if (value instanceof byte[]) {
+      decoded = AsciiStrings.decode((byte[]) value, beginIndex, endIndex);
+    } else {
+      byte[] bytes = new byte[endIndex - beginIndex];
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = ((ByteBuffer) value).get(beginIndex + i);
+      }
+      decoded = AsciiStrings.decode(bytes);
+    }
+    return parseFields(decoded, 0, decoded.length(), shouldThrow);
+  }
+
+  /**
+   * Almost all input is version 00, which is fixed length. This validates the hyphens up front, so
+   * that fields can be decoded at fixed offsets, without the field splitting logic in {@link
+   * #parseFields(CharSequence, int, int, boolean)}. This is kept small, so that it can be inlined.
+   *
+   * @return null when the input isn't valid version 00, for example a later version or malformed.
+   * The caller should fall back to {@link #parseFields(CharSequence, int, int, boolean)}, which
+   * logs why.
+   */
+  @Nullable static TraceContext parseVersion00(CharSequence value, int beginIndex) {
+    // 00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01
+    // ^  ^3                              ^35             ^52
+    if (value.charAt(beginIndex) != '0'
+      || value.charAt(beginIndex + 1) != '0'
+      || value.charAt(beginIndex + 2) != '-'
+      || value.charAt(beginIndex + 35) != '-'
+      || value.charAt(beginIndex + 52) != '-'
+      || value.charAt(beginIndex + 53) != '0') {
+      return null;
+    }
+
+    // Only one flag is defined at version 0: sampled
+    char sampled = value.charAt(beginIndex + 54);
+    if (sampled != '0' && sampled != '1') return null;
+
+    return newContext(
+      lowerHexToUnsignedInt(value, beginIndex + 3),
+      lowerHexToUnsignedInt(value, beginIndex + 11),
+      lowerHexToUnsignedInt(value, beginIndex + 19),
+      lowerHexToUnsignedInt(value, beginIndex + 27),
+      lowerHexToUnsignedInt(value, beginIndex + 36),
+      lowerHexToUnsignedInt(value, beginIndex + 44),
+      sampled == '1'
+    );
+  }
+
+  /** Like {@link #parseVersion00(CharSequence, int)}, except for bytes. */
+  @Nullable static TraceContext parseVersion00(Object value, int beginIndex) {
+    if (charAt(value, beginIndex) != '0'
+      || charAt(value, beginIndex + 1) != '0'
+      || charAt(value, beginIndex + 2) != '-'
+      || charAt(value, beginIndex + 35) != '-'
+      || charAt(value, beginIndex + 52) != '-'
+      || charAt(value, beginIndex + 53) != '0') {
+      return null;
+    }
+
+    char sampled = charAt(value, beginIndex + 54);
+    if (sampled != '0' && sampled != '1') return null;
+
+    return newContext(
+      lowerHexToUnsignedInt(value, beginIndex + 3),
+      lowerHexToUnsignedInt(value, beginIndex + 11),
+      lowerHexToUnsignedInt(value, beginIndex + 19),
+      lowerHexToUnsignedInt(value, beginIndex + 27),
+      lowerHexToUnsignedInt(value, beginIndex + 36),
+      lowerHexToUnsignedInt(value, beginIndex + 44),
+      sampled == '1'
+    );
+  }
+
+  /** Joins the 32-bit halves read by {@code parseVersion00}, or returns null if any are invalid. */
+  @Nullable static TraceContext newContext(long traceIdHigh0, long traceIdHigh1, long traceId0,
+    long traceId1, long spanId0, long spanId1, boolean sampled) {
+    if ((traceIdHigh0 | traceIdHigh1 | traceId0 | traceId1 | spanId0 | spanId1) < 0L) {
+      return null; // at least one is -1 (invalid)
+    }
+
+    long traceIdHigh = traceIdHigh0 << 32 | traceIdHigh1;
+    long traceId = traceId0 << 32 | traceId1;
+    long spanId = spanId0 << 32 | spanId1;
+    if ((traceIdHigh == 0L && traceId == 0L) || spanId == 0L) return null; // read all zeros
+
+    return TraceContext.newBuilder()
+      .traceIdHigh(traceIdHigh)
+      .traceId(traceId)
+      .spanId(spanId)
+      .sampled(sampled)
+      .build();
+  }
+
+  /** Splits the input on hyphen, decoding each field in order, until end of input. */
+  @Nullable static TraceContext parseFields(
+    CharSequence value, int beginIndex, int endIndex, boolean shouldThrow) {
     int length = endIndex - beginIndex;
 
     if (length == 0) {
@@ -207,6 +505,21 @@ public final class TraceparentFormat {
         buffer = 0L;
       }
 
+      // IDs are made of 16 character halves. Try to decode a whole half at a time, falling back to
+      // the character loop below when the input is short or not lower-hex. The latter ensures the
+      // same log message regardless of where in the ID a bad character is.
+      if (endIndex - pos >= 16 && (currentField == FIELD_PARENT_ID
+        ? currentFieldLength == 0
+        : currentField == FIELD_TRACE_ID && (currentFieldLength == 0 || currentFieldLength == 16))) {
+        long high = lowerHexToUnsignedInt(value, pos), low = lowerHexToUnsignedInt(value, pos + 8);
+        if ((high | low) >= 0L) { // neither are -1 (invalid)
+          buffer = high << 32 | low;
+          currentFieldLength += 16;
+          pos += 15; // the loop increments pos one more
+          continue;
+        }
+      }
+
       currentFieldLength++;
 
       // The rest of this is normal lower-hex decoding
@@ -225,6 +538,74 @@ public final class TraceparentFormat {
     return builder.build();
   }
 
+  static final long
+    HIGH_BITS = 0x8080808080808080L,
+    LOW_NIBBLES = 0x0f0f0f0f0f0f0f0fL;
+
+  /**
+   * Decodes 8 lower-hex characters at a time using SIMD within a register (SWAR) arithmetic.
+   *
+   * <p>The characters are packed into a long, one per byte. Range checks are performed on all
+   * bytes at once by adding a constant which carries into the high bit of each byte, when it is at
+   * least that value. This works because ASCII never sets the high bit, so no carry can overflow
+   * into the next byte.
+   *
+   * @return the unsigned 32-bit value or -1 if any character is not lower-hex.
+   */
+  static long lowerHexToUnsignedInt(CharSequence value, int beginIndex) {
+    long x = 0L;
+    for (int i = beginIndex, endIndex = beginIndex + 8; i < endIndex; i++) {
+      char c = value.charAt(i);
+      if (c > 0x7f) return -1L; // not ASCII
+      x = x << 8 | c;
+    }
+    return lowerHexToUnsignedInt(x);
+  }
+
+  /** Like {@link #lowerHexToUnsignedInt(CharSequence, int)}, except for bytes. */
+  static long lowerHexToUnsignedInt(Object value, int beginIndex) {
+    long x = 0L;
+    if (value instanceof byte[]) {
+      byte[] bytes = (byte[]) value;
+      for (int i = beginIndex, endIndex = beginIndex + 8; i < endIndex; i++) {
+        x = x << 8 | (bytes[i] & 0xff);
+      }
+    } else {
+      for (int i = beginIndex, endIndex = beginIndex + 8; i < endIndex; i++) {
+        x = x << 8 | charAt(value, i);
+      }
+    }
+    return lowerHexToUnsignedInt(x);
+  }
+
+  /** Decodes 8 characters packed into a long, one per byte, most significant first. */
+  static long lowerHexToUnsignedInt(long x) {
+    if ((x & HIGH_BITS) != 0L) return -1L; // not ASCII
+
+    // The high bit of each byte is set when the character is in range: '0'-'9' or 'a'-'f'
+    long digits = (x + 0x5050505050505050L) & ~(x + 0x4646464646464646L); // >= '0' && <= '9'
+    long letters = (x + 0x1f1f1f1f1f1f1f1fL) & ~(x + 0x1919191919191919L); // >= 'a' && <= 'f'
+    if (((digits | letters) & HIGH_BITS) != HIGH_BITS) return -1L; // not lower-hex
+
+    // The low nibble of '0'-'9' is its value. For 'a'-'f' it is one, so add 9 to get 10-15.
+    x = (x & LOW_NIBBLES) + ((letters & HIGH_BITS) >>> 7) * 9;
+
+    // Gather the nibble in each byte into the low 32 bits, keeping the most significant first.
+    x = (x | x >>> 4) & 0x00ff00ff00ff00ffL;
+    x = (x | x >>> 8) & 0x0000ffff0000ffffL;
+    return (x | x >>> 16) & 0x00000000ffffffffL;
+  }
+
+  /**
+   * Returns the character at the index of a {@code byte[]} or {@link ByteBuffer}. Bytes are
+   * interpreted as ISO-8859-1, so that non-ASCII input fails lower-hex validation the same way as it
+   * would in a {@link String}.
+   */
+  static char charAt(Object value, int index) {
+    if (value instanceof byte[]) return (char) (((byte[]) value)[index] & 0xff);
+    return (char) (((ByteBuffer) value).get(index) & 0xff);
+  }
+
   static boolean validateFieldLength(int field, int length, boolean shouldThrow) {
     int expectedLength = (field == FIELD_VERSION || field == FIELD_TRACE_FLAGS)
       ? 2  // There are two fields that are 2 characters long: version and flags
@@ -266,20 +647,27 @@ public final class TraceparentFormat {
     return TraceContextPropagation.logOrThrow(msg, field, shouldThrow);
   }
 
-  static byte[] asciiToNewByteArray(char[] buffer, int length) {
-    byte[] result = new byte[length];
-    for (int i = 0; i < length; i++) {
-      result[i] = (byte) buffer[i];
+  static final byte[] HEX_DIGITS =
+    {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  /** Like {@link HexCodec#writeHexLong(char[], int, long)}, except writes ASCII bytes. */
+  static void writeHexLong(byte[] data, int pos, long v) {
+    for (int shift = 60; shift >= 0; shift -= 4) {
+      data[pos++] = HEX_DIGITS[(int) (v >>> shift) & 0xf];
     }
-    return result;
   }
 
   static final ThreadLocal<char[]> CHAR_BUFFER = new ThreadLocal<char[]>();
 
   static char[] getCharBuffer() {
+    return getCharBuffer(FORMAT_LENGTH);
+  }
+
+  /** Returns the thread-local buffer, replacing it when shorter than {@code minLength}. */
+  static char[] getCharBuffer(int minLength) {
     char[] charBuffer = CHAR_BUFFER.get();
-    if (charBuffer == null) {
-      charBuffer = new char[FORMAT_LENGTH];
+    if (charBuffer == null || charBuffer.length < minLength) {
+      charBuffer = new char[Math.max(minLength, FORMAT_LENGTH)];
       CHAR_BUFFER.set(charBuffer);
     }
     return charBuffer;
@@ -14,34 +14,406 @@
 package brave.propagation.tracecontext;
 
 import brave.internal.Nullable;
+import brave.propagation.tracecontext.TracestateKeyMatcher.TracestateIndex;
 
-final class Tracestate {
-  static final Tracestate EMPTY = new Tracestate(null);
+import static brave.propagation.tracecontext.TraceContextPropagation.FactoryBuilder.THROWING_VALIDATOR;
+import static brave.propagation.tracecontext.TracestateFormat.MALFORMED;
+import static brave.propagation.tracecontext.TracestateFormat.NO_ENTRY;
+import static brave.propagation.tracecontext.internal.CharSequences.regionMatches;
+import static brave.propagation.tracecontext.internal.CharSequences.withoutSubSequence;
 
-  @Nullable final CharSequence otherState;
+/**
+ * Entries of the {@code tracestate} header, other than the one for this propagation, which are
+ * propagated downstream. Use {@code context.findExtra(Tracestate.class)} to access these.
+ *
+ * <p>This is a view over the original header, so reading doesn't allocate. Methods that change
+ * entries return a new instance, which you add to the context in place of this one. For example:
+ * <pre>{@code
+ * Tracestate tracestate = context.findExtra(Tracestate.class);
+ * CharSequence congo = tracestate != null ? tracestate.get("congo") : null;
+ * }</pre>
+ *
+ * <p>See <a href="https://www.w3.org/TR/trace-context/#tracestate-header">...</a>
+ */
+public final class Tracestate {
+  static final Tracestate EMPTY = new Tracestate("b3", null, null);
+  static final int MAX_ENTRIES = 32, MAX_ENTRY_LENGTH_BEFORE_TRUNCATION = 128;
+
+  /** Receives each entry in order. Offsets are relative to the buffer. */
+  public interface EntryHandler<T> {
+    /**
+     * @param target     same object passed to {@link #forEach(EntryHandler, Object)}
+     * @param buffer     characters of all entries, only valid for the duration of the call
+     * @param beginKey   begin index of the key, inclusive
+     * @param endKey     end index of the key, exclusive
+     * @param beginValue begin index of the value, inclusive
+     * @param endValue   end index of the value, exclusive
+     * @return false to stop iterating
+     */
+    boolean onEntry(T target, CharSequence buffer, int beginKey, int endKey, int beginValue,
+      int endValue);
+  }
+
+  /**
+   * Returns an instance without entries, as a base for {@link #put(String, String)}. This is for
+   * the default key "b3". Use the instance extracted when the propagation has a different key.
+   */
+  public static Tracestate empty() {
+    return EMPTY;
+  }
+
+  /** Like {@link #empty()}, except for the key of a propagation, which is usually the default. */
+  static Tracestate empty(String thisKey) {
+    return thisKey.equals(EMPTY.thisKey) ? EMPTY : new Tracestate(thisKey, null, null);
+  }
+
+  /** The key of the propagation's own entry, which {@link #put(String, String)} rejects. */
+  final String thisKey;
+  /** When not null, {@link #otherState} is parsed from this on first use. */
+  @Nullable final String unparsed;
+  @Nullable final TracestateFormat tracestateFormat;
+  // When unparsed, this is null until first use. Races compute the same value, which is safe to
+  // publish as String and the internal CharSequence types only have final fields.
+  @Nullable CharSequence otherState;
+  // Cached by the injector. Races compute the same value, and the type only has final fields.
+  @Nullable RenderedTail renderedTail;
+  /** Values of keys registered with {@link TracestateKeyMatcher}, found on extraction. */
+  @Nullable final TracestateIndex index;
 
   Tracestate(CharSequence otherState) {
+    this(EMPTY.thisKey, otherState, null);
+  }
+
+  Tracestate(String thisKey, @Nullable CharSequence otherState, @Nullable TracestateIndex index) {
+    this.thisKey = thisKey;
+    this.unparsed = null;
+    this.tracestateFormat = null;
     this.otherState = otherState;
+    this.index = index;
+  }
+
+  Tracestate(TracestateFormat tracestateFormat, String unparsed, @Nullable TracestateIndex index) {
+    this.thisKey = tracestateFormat.thisKey;
+    this.unparsed = unparsed;
+    this.tracestateFormat = tracestateFormat;
+    this.index = index;
   }
 
-  static Tracestate create(CharSequence otherState) {
+  static Tracestate create(String thisKey, @Nullable CharSequence otherState,
+    @Nullable TracestateIndex index) {
     return otherState != null && otherState.length() > 0
-      ? new Tracestate(otherState)
-      : Tracestate.EMPTY;
+      ? new Tracestate(thisKey, otherState, index)
+      : empty(thisKey);
+  }
+
+  static Tracestate createUnparsed(TracestateFormat tracestateFormat, String tracestateString) {
+    return createUnparsed(tracestateFormat, tracestateString, null);
+  }
+
+  /**
+   * Defers validation of the {@code tracestate} header, and removal of our entry from it, until
+   * {@link #otherState()} is first called. This is usually when injecting an outbound request.
+   */
+  static Tracestate createUnparsed(TracestateFormat tracestateFormat, String tracestateString,
+    @Nullable TracestateIndex index) {
+    return tracestateString.length() > 0
+      ? new Tracestate(tracestateFormat, tracestateString, index)
+      : empty(tracestateFormat.thisKey);
+  }
+
+  /** Returns the entries of the {@code tracestate} header which are not ours, or null if none. */
+  @Nullable CharSequence otherState() {
+    if (unparsed == null) return otherState;
+    CharSequence result = otherState;
+    if (result == null) otherState = result = parseOtherState(tracestateFormat, unparsed);
+    return result.length() > 0 ? result : null;
+  }
+
+  /** Returns the header without our entry, or empty if malformed, same as eager extraction. */
+  static CharSequence parseOtherState(TracestateFormat tracestateFormat, String tracestateString) {
+    long thisEntry = tracestateFormat.scan(tracestateString, false);
+    if (thisEntry == MALFORMED) return "";
+    if (thisEntry == NO_ENTRY) return tracestateString;
+    return withoutThisEntry(tracestateString, thisEntry);
+  }
+
+  /**
+   * Returns the header without our entry, or empty if there are no others. Whitespace around our
+   * entry is removed along with it, leaving one comma between the entries before and after it.
+   */
+  static CharSequence withoutThisEntry(String tracestateString, long thisEntry) {
+    int beginSkip = beginEntry(thisEntry), endSkip = endEntry(thisEntry);
+    while (beginSkip > 0 && isSeparator(tracestateString.charAt(beginSkip - 1))) beginSkip--;
+    long next = nextEntry(tracestateString, endSkip);
+    if (next != -1L) {
+      if (beginSkip > 0) beginSkip = tracestateString.indexOf(',', beginSkip) + 1;
+      endSkip = beginEntry(next);
+    } else {
+      if (beginSkip == 0) return ""; // ours was the only entry
+      endSkip = tracestateString.length();
+    }
+    return withoutSubSequence(tracestateString, beginSkip, endSkip);
+  }
+
+  /** Returns true if there are no entries besides this one, so no need to keep the header. */
+  static boolean isOnlyEntry(CharSequence buffer, long entry) {
+    for (int i = beginEntry(entry) - 1; i >= 0; i--) {
+      if (!isSeparator(buffer.charAt(i))) return false;
+    }
+    return nextEntry(buffer, endEntry(entry)) == -1L;
+  }
+
+  /** Returns the count of entries. */
+  public int size() {
+    CharSequence buffer = otherState();
+    if (buffer == null) return 0;
+    int size = 0;
+    for (int i = 0, length = buffer.length(); i < length; ) {
+      long entry = nextEntry(buffer, i);
+      if (entry == -1L) break;
+      size++;
+      i = endEntry(entry);
+    }
+    return size;
+  }
+
+  /** Calls the handler for each entry, in order, until it returns false. */
+  public <T> void forEach(EntryHandler<T> handler, T target) {
+    if (handler == null) throw new NullPointerException("handler == null");
+    CharSequence buffer = otherState();
+    if (buffer == null) return;
+    for (int i = 0, length = buffer.length(); i < length; ) {
+      long entry = nextEntry(buffer, i);
+      if (entry == -1L) break;
+      int beginKey = beginEntry(entry), endEntry = endEntry(entry);
+      int endKey = indexOf(buffer, '=', beginKey, endEntry);
+      if (!handler.onEntry(target, buffer, beginKey, endKey, endKey + 1, endEntry)) return;
+      i = endEntry;
+    }
+  }
+
+  /** Returns true if there is an entry with this key. */
+  public boolean containsKey(String key) {
+    if (key == null) throw new NullPointerException("key == null");
+    int slot = index != null ? index.matcher.slot(key) : -1;
+    if (slot != -1) return index.valueOffsets[slot * 2] != -1;
+    CharSequence buffer = otherState();
+    return buffer != null && findEntry(buffer, key) != -1L;
+  }
+
+  /**
+   * Returns the value of the entry with this key, or null if there is none. Use {@link
+   * #forEach(EntryHandler, Object)} instead to read values without allocating a view of them.
+   *
+   * <p>Keys registered with {@link TraceContextPropagation.FactoryBuilder#indexTracestateKey} were
+   * found on extraction, so they are not searched for again.
+   */
+  @Nullable public CharSequence get(String key) {
+    if (key == null) throw new NullPointerException("key == null");
+    int slot = index != null ? index.matcher.slot(key) : -1;
+    if (slot != -1) {
+      int beginValue = index.valueOffsets[slot * 2];
+      if (beginValue == -1) return null;
+      return index.tracestateString.subSequence(beginValue, index.valueOffsets[slot * 2 + 1]);
+    }
+    CharSequence buffer = otherState();
+    if (buffer == null) return null;
+    long entry = findEntry(buffer, key);
+    if (entry == -1L) return null;
+    return buffer.subSequence(beginEntry(entry) + key.length() + 1, endEntry(entry));
   }
 
-  String stateString(String thisKey, String thisValue) {
+  /**
+   * Returns a copy with this entry first, replacing any existing entry with the same key. The
+   * specification calls for updated entries to move to the beginning.
+   *
+   * <p>Note: The key of this propagation, "b3" by default, is written by the injector, so it is
+   * rejected here.
+   *
+   * @throws IllegalArgumentException if the key or value are malformed per the specification, or
+   *                                  the key is that of this propagation.
+   */
+  public Tracestate put(String key, String value) {
+    if (key == null) throw new NullPointerException("key == null");
+    if (value == null) throw new NullPointerException("value == null");
+    THROWING_VALIDATOR.validateKey(key, 0, key.length());
+    THROWING_VALIDATOR.validateValue(value, 0, value.length());
+    if (key.equals(thisKey)) {
+      throw new IllegalArgumentException("Invalid key: " + key + " is written by the injector");
+    }
+
+    CharSequence others = otherState();
+    if (others != null) others = without(others, key);
+    int length = key.length() + 1 + value.length();
+    if (others != null) length += 1 + others.length();
+
+    StringBuilder result = new StringBuilder(length).append(key).append('=').append(value);
+    if (others != null) result.append(',').append(others);
+    return new Tracestate(thisKey, result.toString(), null);
+  }
+
+  /** Returns a copy without the entry with this key, or this if there is none. */
+  public Tracestate remove(String key) {
+    if (key == null) throw new NullPointerException("key == null");
+    CharSequence buffer = otherState();
+    if (buffer == null) return this;
+    CharSequence result = without(buffer, key);
+    if (result == buffer) return this;
+    return create(thisKey, result, null);
+  }
+
+  /** Returns the input without the entry with this key, or null if there are no entries left. */
+  @Nullable static CharSequence without(CharSequence buffer, String key) {
+    long entry = findEntry(buffer, key);
+    if (entry == -1L) return buffer;
+
+    // Skip the separator after the entry, or if it is the last, the one before it.
+    int beginSkip = beginEntry(entry), endSkip = endEntry(entry);
+    long next = nextEntry(buffer, endSkip);
+    if (next != -1L) {
+      endSkip = beginEntry(next);
+    } else {
+      endSkip = buffer.length();
+      while (beginSkip > 0 && isSeparator(buffer.charAt(beginSkip - 1))) beginSkip--;
+      if (beginSkip == 0) return null; // this was the only entry
+    }
+    return withoutSubSequence(buffer, beginSkip, endSkip);
+  }
+
+  // Entries are packed into a long as the begin index of the key and the end index of the value.
+  // Whitespace and empty entries between them are skipped, so there's no need to allocate to
+  // return offsets. The buffer was validated by TracestateFormat, so we don't check that again.
+
+  static int beginEntry(long entry) {
+    return (int) (entry >>> 32);
+  }
+
+  static int endEntry(long entry) {
+    return (int) entry;
+  }
+
+  /** Returns the next entry at or after the index, or -1 if there are no more. */
+  static long nextEntry(CharSequence buffer, int index) {
+    int length = buffer.length();
+    while (index < length && isSeparator(buffer.charAt(index))) index++;
+    if (index == length) return -1L;
+
+    int endEntry = indexOf(buffer, ',', index, length);
+    if (endEntry == -1) endEntry = length;
+    while (isSeparator(buffer.charAt(endEntry - 1))) endEntry--; // trim trailing whitespace
+    return (long) index << 32 | endEntry;
+  }
+
+  /** Returns the entry with the key, or -1 if there is none. */
+  static long findEntry(CharSequence buffer, String key) {
+    int keyLength = key.length();
+    for (int i = 0, length = buffer.length(); i < length; ) {
+      long entry = nextEntry(buffer, i);
+      if (entry == -1L) break;
+      int beginKey = beginEntry(entry), endKey = beginKey + keyLength;
+      i = endEntry(entry);
+      if (endKey < i && buffer.charAt(endKey) == '='
+        && regionMatches(key, buffer, beginKey, endKey)) {
+        return entry;
+      }
+    }
+    return -1L;
+  }
+
+  static boolean isSeparator(char c) {
+    return c == ',' || c == ' ' || c == '\t';
+  }
+
+  static int indexOf(CharSequence buffer, char c, int beginIndex, int endIndex) {
+    for (int i = beginIndex; i < endIndex; i++) {
+      if (buffer.charAt(i) == c) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the {@code tracestate} header value, with our entry first. Other entries are kept in
+   * order, except when they would exceed {@code maxLength} or 32 entries.
+   *
+   * <p>Other entries are rendered once by {@link #tail(int)}, so that repeated injection, such as
+   * for each outbound request of a server span and its children, only copies them once more.
+   */
+  String stateString(String thisKey, String thisValue, int maxLength) {
     int length = thisKey.length() + 1 + thisValue.length();
-    if (otherState != null) length += 1 + otherState.length();
+    String tail = tail(maxLength - length);
+    return new StringBuilder(length + tail.length())
+      .append(thisKey).append('=').append(thisValue).append(tail).toString();
+  }
+
+  /**
+   * Returns other entries, each preceded by a comma, or empty if there are none. The result is
+   * cached, and reused as long as {@code maxLength} doesn't change which entries are kept.
+   *
+   * <p>Truncation follows <a href="https://www.w3.org/TR/trace-context/#tracestate-limits">...</a>:
+   * Entries larger than 128 characters are removed first, then entries from the end. This is done
+   * in one pass, keeping each entry that is not too large until the next one wouldn't fit. Any
+   * whitespace around entries is removed, too.
+   *
+   * @param maxLength the length available after our entry
+   */
+  String tail(int maxLength) {
+    RenderedTail cached = renderedTail;
+    if (cached != null && cached.isValidFor(maxLength)) return cached.value;
+
+    CharSequence otherState = otherState();
+    if (otherState == null) return "";
+
+    // Whether to truncate depends on the length after whitespace is removed, so render first.
+    StringBuilder result = new StringBuilder(1 + otherState.length());
+    appendEntries(result, otherState, false, maxLength);
+    boolean truncate = result.length() > maxLength;
+    if (truncate) {
+      result.setLength(0);
+      appendEntries(result, otherState, true, maxLength);
+    }
+    String tail = result.toString();
+    renderedTail = new RenderedTail(tail, maxLength, truncate);
+    return tail;
+  }
+
+  static void appendEntries(StringBuilder result, CharSequence otherState, boolean truncate,
+    int maxLength) {
+    int entryCount = 1; // our entry
+    for (int i = 0, endIndex = otherState.length(); i < endIndex; ) {
+      long entry = nextEntry(otherState, i);
+      if (entry == -1L) break;
+      int beginEntry = beginEntry(entry), endEntry = endEntry(entry);
+      i = endEntry;
+
+      int entryLength = endEntry - beginEntry;
+      if (truncate) {
+        if (entryLength > MAX_ENTRY_LENGTH_BEFORE_TRUNCATION) continue; // removed first
+        if (result.length() + 1 + entryLength > maxLength) break; // the rest are removed
+      }
+      result.append(',').append(otherState, beginEntry, endEntry);
+      if (++entryCount == MAX_ENTRIES) break;
+    }
+  }
+
+  static final class RenderedTail {
+    final String value;
+    final int maxLength;
+    final boolean truncated;
+
+    RenderedTail(String value, int maxLength, boolean truncated) {
+      this.value = value;
+      this.maxLength = maxLength;
+      this.truncated = truncated;
+    }
 
-    // TODO: SHOULD on 512 char limit https://tracecontext.github.io/trace-context/#tracestate-limits
-    StringBuilder result = new StringBuilder(length);
-    result.append(thisKey).append('=').append(thisValue);
-    if (otherState != null) result.append(',').append(otherState);
-    return result.toString();
+    boolean isValidFor(int maxLength) {
+      // When nothing was truncated, all entries are kept for any larger length, too.
+      return this.maxLength == maxLength || (!truncated && this.maxLength <= maxLength);
+    }
   }
 
   @Override public String toString() {
+    CharSequence otherState = otherState();
     if (otherState == null) return "Tracestate{}";
     return "Tracestate{" + otherState + "}";
   }
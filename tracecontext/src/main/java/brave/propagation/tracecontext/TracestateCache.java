@@ -0,0 +1,201 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.internal.Nullable;
+import brave.propagation.tracecontext.TraceContextPropagation.LastFailure;
+import brave.propagation.tracecontext.TracestateFormat.ScanResult;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static brave.propagation.tracecontext.TraceContextPropagation.logOrThrow;
+import static brave.propagation.tracecontext.Tracestate.MAX_ENTRIES;
+import static brave.propagation.tracecontext.Tracestate.beginEntry;
+import static brave.propagation.tracecontext.Tracestate.endEntry;
+import static brave.propagation.tracecontext.Tracestate.withoutThisEntry;
+import static brave.propagation.tracecontext.TracestateFormat.MALFORMED;
+import static brave.propagation.tracecontext.TracestateFormat.NO_ENTRY;
+import static brave.propagation.tracecontext.TracestateFormat.OVER_MAX_ENTRIES;
+
+/**
+ * Remembers the result of {@link TracestateFormat#scan(CharSequence, boolean)} for each header, so
+ * that repeated headers skip validation, as well as finding values of indexed keys.
+ *
+ * <p>The raw header is looked up first, so that a hit costs only its hash code and equality check.
+ * On a miss, our entry is removed and the other entries are looked up, too, unless indexing. This
+ * is because the value of our entry changes on each request, while the other entries often don't.
+ * Their count is cached with them, as our entry counts towards the limit of the whole header.
+ * The cache is split into segments, each a least recently used map, to reduce contention.
+ *
+ * <p>Hits and misses are reported to {@link TraceContextMetrics#tracestateCached(boolean)}, rather
+ * than counted here, so that the cache doesn't share a counter across request threads.
+ */
+final class TracestateCache {
+  static final int MAX_SEGMENTS = 16;
+
+  final Segment[] segments;
+
+  TracestateCache(int maxSize) {
+    if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+    int segmentCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(maxSize));
+    int segmentSize = (maxSize + segmentCount - 1) / segmentCount;
+    segments = new Segment[segmentCount];
+    for (int i = 0; i < segmentCount; i++) segments[i] = new Segment(segmentSize);
+  }
+
+  /**
+   * Like {@link TracestateFormat#scan(CharSequence, boolean, TracestateFormat.ScanResult)}, except
+   * using cached validation.
+   *
+   * <p>When indexing, a miss scans the whole header, as offsets of values are relative to it.
+   *
+   * @param metrics receives whether this was a hit, when set
+   */
+  Scanned scan(TracestateFormat tracestateFormat, String tracestateString,
+    @Nullable TracestateKeyMatcher matcher, @Nullable TraceContextMetrics metrics) {
+    Segment segment = segment(tracestateString.hashCode());
+    Scanned result = segment.getSynchronized(tracestateString);
+    if (result != null) {
+      if (metrics != null) metrics.tracestateCached(true);
+      if (result.failure != null) logOrThrow(result.failure, tracestateFormat.shouldThrow);
+      return result;
+    }
+
+    long thisEntry = matcher == null ? tracestateFormat.findThisEntry(tracestateString) : NO_ENTRY;
+    if (thisEntry == NO_ENTRY) { // only other entries or indexing, and they weren't cached
+      if (metrics != null) metrics.tracestateCached(false);
+      result = new Scanned(tracestateFormat, tracestateString, matcher);
+    } else {
+      Scanned otherState = scanOtherState(tracestateFormat,
+        withoutThisEntry(tracestateString, thisEntry), metrics);
+      int entryCount = otherState.entryCount != -1 ? otherState.entryCount + 1 : -1;
+      if (otherState.thisEntry == MALFORMED) {
+        result = Scanned.malformed(entryCount, otherState.failure);
+      } else if (entryCount > MAX_ENTRIES) { // same as scanning the whole header
+        logOrThrow(OVER_MAX_ENTRIES, tracestateFormat.shouldThrow);
+        result = Scanned.malformed(entryCount, OVER_MAX_ENTRIES);
+      } else {
+        int beginValue = beginEntry(thisEntry) + tracestateFormat.thisKey.length() + 1;
+        result = tracestateFormat.validateValue(tracestateString, beginValue, endEntry(thisEntry))
+          ? new Scanned(thisEntry, null, entryCount, null)
+          : Scanned.malformed(-1, LastFailure.get().msg); // validateValue logged why
+      }
+    }
+    segment.putSynchronized(tracestateString, result);
+    return result;
+  }
+
+  /** Scans entries other than ours, unless they were cached under their own key. */
+  Scanned scanOtherState(TracestateFormat tracestateFormat, CharSequence otherState,
+    @Nullable TraceContextMetrics metrics) {
+    Key key = new Key(otherState);
+    Segment segment = segment(key.hash);
+    Scanned cached = segment.getSynchronized(key);
+    if (metrics != null) metrics.tracestateCached(cached != null);
+    if (cached != null) {
+      if (cached.failure != null) logOrThrow(cached.failure, tracestateFormat.shouldThrow);
+      return cached;
+    }
+    String otherString = otherState.toString();
+    Scanned result = new Scanned(tracestateFormat, otherString, null);
+    segment.putSynchronized(otherString, result);
+    return result;
+  }
+
+  Segment segment(int hash) {
+    return segments[(hash ^ hash >>> 16) & (segments.length - 1)];
+  }
+
+  /** The cached result of scanning a header. */
+  static final class Scanned {
+    static Scanned malformed(int entryCount, @Nullable String failure) {
+      return new Scanned(MALFORMED, null, entryCount, failure);
+    }
+
+    final long thisEntry;
+    /** Offsets of indexed values, shared by each equal header, so never modified. */
+    @Nullable final int[] valueOffsets;
+    /** The same as {@link ScanResult#entryCount}. */
+    final int entryCount;
+    /** Why the header is malformed, logged again on each hit, the same as when not cached. */
+    @Nullable final String failure;
+
+    Scanned(TracestateFormat tracestateFormat, String tracestateString,
+      @Nullable TracestateKeyMatcher matcher) {
+      ScanResult found = new ScanResult(matcher);
+      this.thisEntry = tracestateFormat.scan(tracestateString, false, found);
+      boolean malformed = thisEntry == MALFORMED;
+      this.valueOffsets = malformed ? null : found.valueOffsets;
+      this.entryCount = found.entryCount;
+      this.failure = malformed ? LastFailure.get().msg : null; // scan logged why
+    }
+
+    Scanned(long thisEntry, @Nullable int[] valueOffsets, int entryCount,
+      @Nullable String failure) {
+      this.thisEntry = thisEntry;
+      this.valueOffsets = valueOffsets;
+      this.entryCount = entryCount;
+      this.failure = failure;
+    }
+  }
+
+  /** Looks up a {@link String} key by the characters of a view, without copying them. */
+  static final class Key {
+    final CharSequence value;
+    final int hash;
+
+    Key(CharSequence value) {
+      this.value = value;
+      int h = 0; // same as String.hashCode
+      for (int i = 0, length = value.length(); i < length; i++) h = 31 * h + value.charAt(i);
+      this.hash = h;
+    }
+
+    @Override public int hashCode() {
+      return hash;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof String)) return false;
+      String that = (String) o;
+      int length = value.length();
+      if (length != that.length()) return false;
+      for (int i = 0; i < length; i++) {
+        if (value.charAt(i) != that.charAt(i)) return false;
+      }
+      return true;
+    }
+  }
+
+  static final class Segment extends LinkedHashMap<Object, Scanned> {
+    final int maxSize;
+
+    Segment(int maxSize) {
+      super(16, 0.75f, true); // access order
+      this.maxSize = maxSize;
+    }
+
+    @Nullable synchronized Scanned getSynchronized(Object key) {
+      return get(key);
+    }
+
+    synchronized void putSynchronized(String key, Scanned value) {
+      put(key, value);
+    }
+
+    @Override protected boolean removeEldestEntry(Map.Entry<Object, Scanned> eldest) {
+      return size() > maxSize;
+    }
+  }
+}
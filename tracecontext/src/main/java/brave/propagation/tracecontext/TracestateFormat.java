@@ -13,9 +13,11 @@
  */
 package brave.propagation.tracecontext;
 
-import brave.internal.codec.EntrySplitter;
+import brave.internal.Nullable;
 
 import static brave.propagation.tracecontext.TraceContextPropagation.logOrThrow;
+import static brave.propagation.tracecontext.Tracestate.MAX_ENTRIES;
+import static brave.propagation.tracecontext.Tracestate.indexOf;
 import static brave.propagation.tracecontext.internal.CharSequences.regionMatches;
 
 /**
@@ -25,9 +27,17 @@ import static brave.propagation.tracecontext.internal.CharSequences.regionMatche
  * entry is most often called vendor name, but it is more about a tracing system vs something vendor
  * specific. We choose to not use the term vendor as this is open source code. Instead, we use term
  * entry (key/value).
+ *
+ * <p>The header is parsed by {@link #scan(CharSequence, boolean)}, which validates each character
+ * as it splits entries, so that each is read once.
  */
-final class TracestateFormat implements EntrySplitter.Handler<int[]> {
+final class TracestateFormat {
   static final TracestateFormat INSTANCE = new TracestateFormat("b3", false);
+  /** Returned by {@link #scan(CharSequence, boolean)} when the header doesn't include our entry. */
+  static final long NO_ENTRY = -1L;
+  /** Returned by {@link #scan(CharSequence, boolean)} when the header is malformed. */
+  static final long MALFORMED = -2L;
+  static final String OVER_MAX_ENTRIES = "Invalid input: over " + MAX_ENTRIES + " entries";
 
   static TracestateFormat get() {
     return INSTANCE;
@@ -35,19 +45,10 @@ final class TracestateFormat implements EntrySplitter.Handler<int[]> {
 
   final String thisKey;
   final boolean shouldThrow;
-  final EntrySplitter entrySplitter;
 
   TracestateFormat(String thisKey, boolean shouldThrow) {
     this.thisKey = thisKey;
     this.shouldThrow = shouldThrow;
-    entrySplitter = EntrySplitter.newBuilder()
-      .maxEntries(32) // https://www.w3.org/TR/trace-context/#list
-      .entrySeparator(',')
-      .trimOWSAroundEntrySeparator(true) // https://www.w3.org/TR/trace-context/#list
-      .keyValueSeparator('=')
-      .trimOWSAroundKeyValueSeparator(false) // https://github.com/w3c/trace-context/pull/411
-      .shouldThrow(shouldThrow)
-      .build();
   }
 
   // Simplify parsing rules by allowing value-based lookup on an ASCII value.
@@ -84,29 +85,185 @@ final class TracestateFormat implements EntrySplitter.Handler<int[]> {
     return c >= ' ' && c <= '~' && c != ',' && c != '=';
   }
 
-  @Override public boolean onEntry(int[] target,
-    CharSequence buffer, int beginKey, int endKey, int beginValue, int endValue) {
-    if (!validateKey(buffer, beginKey, endKey) || !validateValue(buffer, beginValue, endValue)) {
-      return false;
+  /**
+   * Validates the header and finds our entry in one pass, without allocating. Entries are split on
+   * comma, ignoring whitespace around them (OWS). The key ends at the first '=', and the value at
+   * the end of the entry. Each character is checked as it is read. Only when the header is
+   * malformed are its entries read again, to log why.
+   *
+   * <p>When our key repeats, the first entry wins. A header with more than {@link
+   * Tracestate#MAX_ENTRIES} entries is malformed. When {@code earlyExit} is true, entries after
+   * ours are neither validated nor counted. This is cheaper when our entry is first, as is usual
+   * when the caller is another service using this library.
+   *
+   * <p>This accepts any {@link CharSequence}, so that headers held as one, such as by {@link
+   * TraceContextPropagation#charSequenceExtractor(TraceContextPropagation.CharSequenceGetter)},
+   * are validated without first copying them into a string.
+   *
+   * @return {@link #NO_ENTRY}, {@link #MALFORMED} or the offsets of our entry, packed the same as
+   * {@link Tracestate#nextEntry(CharSequence, int)}.
+   */
+  long scan(CharSequence tracestate, boolean earlyExit) {
+    return scan(tracestate, earlyExit, null);
+  }
+
+  /**
+   * Like {@link #scan(CharSequence, boolean)}, except this also writes what it found to {@code
+   * found}. Value offsets are only valid when the result isn't {@link #MALFORMED}.
+   *
+   * <p>When {@link ScanResult#matcher} is set, the begin and end index of the value of each
+   * registered key is written to {@link ScanResult#valueOffsets} as it is validated. {@code
+   * earlyExit} is ignored when indexing, as registered keys may be after ours.
+   */
+  long scan(CharSequence tracestate, boolean earlyExit, @Nullable ScanResult found) {
+    TracestateKeyMatcher matcher = null;
+    if (found != null) { // until the header is known to be valid
+      matcher = found.matcher;
+      found.thisEntry = MALFORMED;
+      found.entryCount = -1;
+    }
+    long result = NO_ENTRY;
+    int keyLength = thisKey.length(), entryCount = 0;
+    for (int i = 0, length = tracestate.length(); i < length; i++) {
+      char c = tracestate.charAt(i);
+      if (c == ',' || c == ' ' || c == '\t') continue; // skip OWS and empty entries
+
+      if (++entryCount > MAX_ENTRIES) {
+        if (found != null) found.entryCount = entryCount;
+        logOrThrow(OVER_MAX_ENTRIES, shouldThrow);
+        return MALFORMED;
+      }
+
+      // The key must start with a letter or number, and end with '='.
+      int beginKey = i;
+      if (!isLetterOrNumber(c)) return malformed(tracestate, beginKey);
+      while (++i < length && (c = tracestate.charAt(i)) != '=') {
+        if (c > LAST_VALID_KEY_CHAR || !VALID_KEY_CHARS[c]) {
+          return malformed(tracestate, beginKey);
+        }
+      }
+      int endKey = i;
+      if (endKey == length || endKey - beginKey > 256) {
+        return malformed(tracestate, beginKey);
+      }
+
+      // The value ends before any trailing OWS. A tab is only valid there, while a space is also
+      // valid inside the value.
+      int beginValue = endKey + 1, endValue = beginValue;
+      boolean tab = false;
+      while (++i < length && (c = tracestate.charAt(i)) != ',') {
+        if (c == ' ') continue;
+        if (c == '\t') {
+          tab = true;
+        } else if (tab || c > LAST_VALID_VALUE_CHAR || !VALID_VALUE_CHARS[c]) {
+          return malformed(tracestate, beginKey);
+        } else {
+          endValue = i + 1;
+        }
+      }
+      if (endValue == beginValue || endValue - beginValue > 256) {
+        return malformed(tracestate, beginKey);
+      }
+
+      if (matcher != null) {
+        int[] valueOffsets = found.valueOffsets;
+        int slot = matcher.slot(tracestate, beginKey, endKey);
+        if (slot != -1 && valueOffsets[slot * 2] == -1) { // the first entry wins
+          valueOffsets[slot * 2] = beginValue;
+          valueOffsets[slot * 2 + 1] = endValue;
+        }
+      }
+
+      if (result == NO_ENTRY && endKey - beginKey == keyLength
+        && regionMatches(thisKey, tracestate, beginKey, endKey)) {
+        result = (long) beginKey << 32 | endValue;
+        if (earlyExit && matcher == null) {
+          if (found != null) found.thisEntry = result; // entries after ours weren't counted
+          return result;
+        }
+      }
+    }
+    if (found != null) {
+      found.thisEntry = result;
+      found.entryCount = entryCount;
+    }
+    return result;
+  }
+
+  /**
+   * Receives what {@link #scan(CharSequence, boolean, ScanResult)} finds, for callers that index,
+   * cache or record it. Others pass null, so that scanning doesn't allocate.
+   *
+   * <p>Extraction that finds our entry without scanning, such as when lazy, sets the fields itself,
+   * so that metrics read the same fields either way.
+   */
+  static final class ScanResult {
+    /** Finds the values of registered keys, or null when not indexing. */
+    @Nullable final TracestateKeyMatcher matcher;
+    /** From {@link TracestateKeyMatcher#newValueOffsets()}, or null when not indexing. */
+    @Nullable final int[] valueOffsets;
+    /** The same as the result of the scan. */
+    long thisEntry = NO_ENTRY;
+    /**
+     * Count of entries, more than {@link Tracestate#MAX_ENTRIES} if there were too many, or -1 if
+     * they weren't all counted, such as when malformed or exiting early at our entry.
+     */
+    int entryCount = -1;
+
+    ScanResult(@Nullable TracestateKeyMatcher matcher) {
+      this.matcher = matcher;
+      this.valueOffsets = matcher != null ? matcher.newValueOffsets() : null;
     }
+  }
 
-    // If we receive upstream data for our key, mark the offsets so we can parse them later.
-    if (regionMatches(thisKey, buffer, beginKey, endKey)) {
-      target[1] = beginKey;
-      target[2] = endKey;
-      target[3] = beginValue;
-      target[4] = endValue;
-    } else if (target[1] != -1 && target[5] == -1) {
-      target[5] = beginKey;
-    } else if (target[0] == -1) {
-      target[0] = endValue;
+  /** Logs why the entry is invalid, or throws if {@link #shouldThrow}. */
+  long malformed(CharSequence tracestate, int beginKey) {
+    int length = tracestate.length();
+    int endEntry = indexOf(tracestate, ',', beginKey, length);
+    if (endEntry == -1) endEntry = length;
+    int endKey = indexOf(tracestate, '=', beginKey, endEntry);
+    if (endKey == -1) {
+      logOrThrow("Invalid entry: missing '='", shouldThrow);
+    } else if (validateKey(tracestate, beginKey, endKey)) {
+      int endValue = endEntry;
+      while (endValue > endKey + 1 && isOWS(tracestate.charAt(endValue - 1))) endValue--;
+      validateValue(tracestate, endKey + 1, endValue);
     }
+    return MALFORMED;
+  }
 
-    return true;
+  /**
+   * Like {@link #scan(CharSequence, boolean)}, except this doesn't validate entries, including ours, as
+   * it is parsed as B3 anyway. This never returns {@link #MALFORMED}.
+   */
+  long findThisEntry(String tracestateString) {
+    int length = tracestateString.length(), keyLength = thisKey.length();
+    for (int i = 0; i < length; ) {
+      char c = tracestateString.charAt(i);
+      if (c == ' ' || c == '\t' || c == ',') { // skip leading whitespace and empty entries
+        i++;
+        continue;
+      }
+
+      int endEntry = tracestateString.indexOf(',', i);
+      if (endEntry == -1) endEntry = length;
+
+      int endKey = i + keyLength;
+      if (endKey < endEntry && tracestateString.charAt(endKey) == '='
+        && regionMatches(thisKey, tracestateString, i, endKey)) {
+        int endValue = endEntry;
+        while (endValue > endKey + 1 && isOWS(tracestateString.charAt(endValue - 1))) {
+          endValue--; // trim trailing whitespace
+        }
+        return (long) i << 32 | endValue;
+      }
+      i = endEntry + 1;
+    }
+    return NO_ENTRY;
   }
 
-  boolean parseInto(String tracestateString, int[] indices) {
-    return entrySplitter.parse(this, indices, tracestateString);
+  static boolean isOWS(char c) {
+    return c == ' ' || c == '\t';
   }
 
   /**
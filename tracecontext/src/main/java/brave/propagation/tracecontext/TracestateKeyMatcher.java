@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.internal.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the values of registered {@code tracestate} keys, such as {@code tenant@system}, in one
+ * pass over the header.
+ *
+ * <p>Keys are compiled into a trie when the factory is built. As {@link TracestateFormat#scan}
+ * validates each entry, its key is walked through the trie once, stopping at the first character
+ * no registered key has at that position. This avoids comparing each entry to each registered key.
+ */
+final class TracestateKeyMatcher {
+  // Characters valid in a key are mapped to a dense code, so that each node of the trie is a small
+  // array of child nodes. Node zero is the root, so it is also used to mean "no child".
+  static final String KEY_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789_-*/@";
+  static final int ALPHABET = KEY_CHARS.length();
+  static final byte[] KEY_CHAR_CODES = new byte[128];
+
+  static {
+    Arrays.fill(KEY_CHAR_CODES, (byte) -1);
+    for (int i = 0; i < ALPHABET; i++) KEY_CHAR_CODES[KEY_CHARS.charAt(i)] = (byte) i;
+  }
+
+  static TracestateKeyMatcher create(List<String> keys) {
+    List<int[]> children = new ArrayList<int[]>();
+    List<Integer> slots = new ArrayList<Integer>();
+    children.add(new int[ALPHABET]);
+    slots.add(-1);
+    for (int slot = 0; slot < keys.size(); slot++) {
+      String key = keys.get(slot);
+      int node = 0;
+      for (int i = 0; i < key.length(); i++) {
+        int code = KEY_CHAR_CODES[key.charAt(i)]; // keys were already validated
+        int child = children.get(node)[code];
+        if (child == 0) {
+          child = children.size();
+          children.add(new int[ALPHABET]);
+          slots.add(-1);
+          children.get(node)[code] = child;
+        }
+        node = child;
+      }
+      slots.set(node, slot);
+    }
+
+    int[] transitions = new int[children.size() * ALPHABET];
+    int[] slotByNode = new int[children.size()];
+    for (int node = 0; node < children.size(); node++) {
+      System.arraycopy(children.get(node), 0, transitions, node * ALPHABET, ALPHABET);
+      slotByNode[node] = slots.get(node);
+    }
+    return new TracestateKeyMatcher(keys, transitions, slotByNode);
+  }
+
+  final List<String> keys;
+  final int[] transitions, slotByNode;
+
+  TracestateKeyMatcher(List<String> keys, int[] transitions, int[] slotByNode) {
+    this.keys = Collections.unmodifiableList(new ArrayList<String>(keys));
+    this.transitions = transitions;
+    this.slotByNode = slotByNode;
+  }
+
+  /** Returns the index of the key in the registered keys, or -1 if it isn't registered. */
+  int slot(CharSequence key) {
+    return slot(key, 0, key.length());
+  }
+
+  /** Like {@link #slot(CharSequence)}, except the key is a range of the buffer. */
+  int slot(CharSequence buffer, int beginKey, int endKey) {
+    int node = 0;
+    for (int i = beginKey; i < endKey; i++) {
+      node = next(node, buffer.charAt(i));
+      if (node == 0) return -1;
+    }
+    return slotByNode[node];
+  }
+
+  int next(int node, char c) {
+    if (c >= KEY_CHAR_CODES.length) return 0;
+    int code = KEY_CHAR_CODES[c];
+    if (code == -1) return 0;
+    return transitions[node * ALPHABET + code];
+  }
+
+  /** Returns offsets for {@link TracestateFormat.ScanResult}, with each key absent. */
+  int[] newValueOffsets() {
+    int[] result = new int[keys.size() * 2];
+    Arrays.fill(result, -1);
+    return result;
+  }
+
+  /**
+   * Returns an index of the values {@link TracestateFormat#scan} found in the header, or null if
+   * there were none.
+   */
+  @Nullable TracestateIndex index(String tracestateString, int[] valueOffsets) {
+    for (int i = 0; i < valueOffsets.length; i += 2) {
+      if (valueOffsets[i] != -1) return new TracestateIndex(this, tracestateString, valueOffsets);
+    }
+    return null;
+  }
+
+  /** Values of registered keys in a {@code tracestate} header, found on extraction. */
+  static final class TracestateIndex {
+    final TracestateKeyMatcher matcher;
+    final String tracestateString;
+    final int[] valueOffsets;
+
+    TracestateIndex(TracestateKeyMatcher matcher, String tracestateString, int[] valueOffsets) {
+      this.matcher = matcher;
+      this.tracestateString = tracestateString;
+      this.valueOffsets = valueOffsets;
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.internal.Nullable;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.propagation.tracecontext.TracestateFormat.ScanResult;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java 11+ version of the same type in "src/main/java".
+ *
+ * <p>Events are disabled by default, so they are only recorded when a recording enables them by
+ * name, such as "brave.propagation.tracecontext.TraceContextExtract". Until then, each extraction
+ * and injection only checks {@link Event#isEnabled()}.
+ *
+ * <p>Extraction fields are set through {@link MetricsRecorder}, so that they are the same as what
+ * {@link TraceContextMetrics} would receive.
+ */
+final class FlightRecorderEvents {
+  // Used to check if events are enabled, without allocating one
+  static final TraceContextExtract EXTRACT = new TraceContextExtract();
+  static final TraceContextInject INJECT = new TraceContextInject();
+
+  @Nullable static Object beginExtract() {
+    if (!EXTRACT.isEnabled()) return null;
+    TraceContextExtract event = new TraceContextExtract();
+    event.begin();
+    return event;
+  }
+
+  static void commitExtract(Object event, MetricsRecorder metricsRecorder,
+    @Nullable Object traceparent, @Nullable Object tracestate, ScanResult found,
+    TraceContextOrSamplingFlags result, boolean fromB3) {
+    TraceContextExtract extract = (TraceContextExtract) event;
+    extract.end();
+    if (!extract.shouldCommit()) return; // such as below a duration threshold
+    if (traceparent != null) extract.traceparentLength = MetricsRecorder.length(traceparent);
+    metricsRecorder.extracted(new ExtractFields(extract), traceparent, tracestate, found, result,
+      fromB3);
+    extract.commit();
+  }
+
+  @Nullable static Object beginInject() {
+    if (!INJECT.isEnabled()) return null;
+    TraceContextInject event = new TraceContextInject();
+    event.begin();
+    return event;
+  }
+
+  static void commitInject(Object event, int traceparentLength, int tracestateLength) {
+    TraceContextInject inject = (TraceContextInject) event;
+    inject.end();
+    if (!inject.shouldCommit()) return;
+    inject.traceparentLength = traceparentLength;
+    inject.tracestateLength = tracestateLength;
+    inject.commit();
+  }
+
+  @Name("brave.propagation.tracecontext.TraceContextExtract")
+  @Label("Trace Context Extract")
+  @Description("Extraction of trace context from traceparent and tracestate headers")
+  @Category({"Brave", "Propagation"})
+  @Enabled(false)
+  @StackTrace(false)
+  static final class TraceContextExtract extends Event {
+    @Label("Traceparent Length")
+    int traceparentLength;
+
+    @Label("Tracestate Length")
+    int tracestateLength;
+
+    @Label("Tracestate Entry Count")
+    @Description("-1 when entries weren't all counted, such as when traceparent was invalid")
+    int tracestateEntryCount;
+
+    @Label("Source")
+    @Description("B3_ENTRY, TRACEPARENT or B3, or absent when nothing was extracted")
+    String source;
+
+    @Label("Failure Reason")
+    @Description("Why trace context headers were present, but couldn't be extracted")
+    String failureReason;
+  }
+
+  @Name("brave.propagation.tracecontext.TraceContextInject")
+  @Label("Trace Context Inject")
+  @Description("Injection of trace context into traceparent and tracestate headers")
+  @Category({"Brave", "Propagation"})
+  @Enabled(false)
+  @StackTrace(false)
+  static final class TraceContextInject extends Event {
+    @Label("Traceparent Length")
+    int traceparentLength;
+
+    @Label("Tracestate Length")
+    int tracestateLength;
+  }
+
+  /** Sets fields of an extraction event, instead of counting. */
+  static final class ExtractFields extends TraceContextMetrics {
+    final TraceContextExtract event;
+
+    ExtractFields(TraceContextExtract event) {
+      this.event = event;
+    }
+
+    @Override public void extracted(Source source) {
+      event.source = source.name();
+    }
+
+    @Override public void extractFailed(String reason) {
+      event.failureReason = reason;
+    }
+
+    @Override public void tracestateReceived(int length, int entryCount) {
+      event.tracestateLength = length;
+      event.tracestateEntryCount = entryCount;
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.propagation.TraceContext;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Java 9+ version of the same type in "src/main/java".
+ *
+ * <p>Strings in Java 9+ are compact: they store Latin-1 bytes when all characters are in range.
+ * ASCII header values always are, so this encodes bytes, which the String constructor can copy
+ * without the compression pass it would do for a {@code char[]}.
+ */
+final class AsciiStrings {
+  static String decode(byte[] value) {
+    return new String(value, ISO_8859_1);
+  }
+
+  /** Like {@link #decode(byte[])}, except only the range from begin to end index. */
+  static String decode(byte[] value, int beginIndex, int endIndex) {
+    return new String(value, beginIndex, endIndex - beginIndex, ISO_8859_1);
+  }
+
+  static String traceparent(TraceparentFormat format, TraceContext context) {
+    byte[] buffer = getByteBuffer();
+    int length = format.write(context, buffer, 0);
+    return new String(buffer, 0, length, ISO_8859_1);
+  }
+
+  static final ThreadLocal<byte[]> BYTE_BUFFER = new ThreadLocal<>();
+
+  static byte[] getByteBuffer() {
+    byte[] byteBuffer = BYTE_BUFFER.get();
+    if (byteBuffer == null) {
+      byteBuffer = new byte[TraceparentFormat.FORMAT_LENGTH];
+      BYTE_BUFFER.set(byteBuffer);
+    }
+    return byteBuffer;
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContext.Extractor;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.propagation.tracecontext.TraceContextMetrics.Source;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+class CountingTraceContextMetricsTest {
+  CountingTraceContextMetrics metrics = new CountingTraceContextMetrics();
+  Propagation<String> propagation =
+    TraceContextPropagation.newFactoryBuilder().metrics(metrics).build().get();
+  Map<String, String> request = new LinkedHashMap<>();
+
+  String traceparent = "00-67891233abcdef012345678912345678-463ac35c9f6413ad-01";
+  String b3 = "67891233abcdef012345678912345678-463ac35c9f6413ad-1";
+
+  @Test void extracted_b3Entry() {
+    request.put("traceparent", traceparent);
+    request.put("tracestate", "congo=t61rcWkgMzE,b3=" + b3);
+
+    extract();
+
+    assertThat(metrics.extractedCount(Source.B3_ENTRY)).isEqualTo(1);
+    assertThat(metrics.extractedCount(Source.TRACEPARENT)).isZero();
+    assertThat(metrics.tracestateLengthCounts()).containsExactly(0, 1, 0, 0, 0);
+    assertThat(metrics.tracestateEntryCounts()[2]).isEqualTo(1);
+  }
+
+  @Test void extracted_traceparent() {
+    request.put("traceparent", traceparent);
+    request.put("tracestate", "");
+
+    extract();
+
+    assertThat(metrics.extractedCount(Source.TRACEPARENT)).isEqualTo(1);
+    assertThat(metrics.tracestateEntryCounts()[0]).isEqualTo(1);
+  }
+
+  @Test void extracted_b3Fallback() {
+    CountingTraceContextMetrics metrics = new CountingTraceContextMetrics();
+    request.put("b3", b3);
+
+    TraceContextPropagation.newFactoryBuilder().b3Fallback(true).metrics(metrics).build().get()
+      .extractor(Map<String, String>::get).extract(request);
+
+    assertThat(metrics.extractedCount(Source.B3)).isEqualTo(1);
+    assertThat(metrics.extractedNothingCount()).isZero();
+  }
+
+  @Test void extractedNothing() {
+    extract();
+
+    assertThat(metrics.extractedNothingCount()).isEqualTo(1);
+    assertThat(metrics.extractFailedCounts()).isEmpty();
+  }
+
+  @Test void extractFailed_missingTracestate() {
+    request.put("traceparent", traceparent);
+
+    extract();
+
+    assertThat(metrics.extractFailedCounts()).containsExactly(entry("Missing tracestate", 1L));
+  }
+
+  @Test void extractFailed_traceparent() {
+    request.put("traceparent", "00-67891233abcdef012345678912345678-463ac35c9f6413-01");
+    request.put("tracestate", "");
+
+    extract();
+    extract();
+
+    assertThat(metrics.extractFailedCounts())
+      .containsExactly(entry("Invalid input: parent ID is too short", 2L));
+  }
+
+  @Test void extractFailed_tracestate() {
+    request.put("traceparent", traceparent);
+    request.put("tracestate", "congo=t61rcWkgMzE,B3=1");
+
+    extract();
+
+    assertThat(metrics.extractFailedCounts())
+      .containsExactly(entry("Invalid key: must start with a-z 0-9", 1L));
+  }
+
+  @Test void extractFailed_b3Entry() {
+    request.put("traceparent", traceparent);
+    request.put("tracestate", "b3=463ac35c9f6413ad");
+
+    extract();
+
+    assertThat(metrics.extractFailedCounts())
+      .containsExactly(entry("Invalid entry: b3 is not B3 single format", 1L));
+  }
+
+  @Test void extractFailed_bytes() {
+    Map<String, byte[]> bytes = new LinkedHashMap<>();
+    bytes.put("traceparent", "00-67891233abcdef012345678912345678-463ac35c9f6413ad-0x"
+      .getBytes(UTF_8));
+    bytes.put("tracestate", "b3=1,congo=t61rcWkgMzE".getBytes(UTF_8));
+
+    ((TraceContextPropagation) propagation).bytesExtractor(Map<String, byte[]>::get)
+      .extract(bytes);
+
+    assertThat(metrics.extractFailedCounts())
+      .containsOnlyKeys("Invalid input: only valid characters are lower-hex for trace flags");
+    // tracestate isn't read when traceparent is invalid, so its entries aren't counted
+    assertThat(metrics.tracestateLengthCounts()).containsExactly(1, 0, 0, 0, 0);
+    assertThat(metrics.tracestateEntryCounts()).containsOnly(0);
+  }
+
+  @Test void extractFailed_tracestateCached() {
+    CountingTraceContextMetrics metrics = new CountingTraceContextMetrics();
+    Extractor<Map<String, String>> extractor = TraceContextPropagation.newFactoryBuilder()
+      .tracestateCacheSize(10)
+      .metrics(metrics)
+      .build().get().extractor(Map::get);
+    request.put("traceparent", traceparent);
+    request.put("tracestate", "congo=t61rcWkgMzE,B3=1");
+
+    extractor.extract(request);
+    extractor.extract(request); // hit, so not scanned again
+
+    assertThat(metrics.tracestateCacheHitCount()).isEqualTo(1);
+    assertThat(metrics.extractFailedCounts())
+      .containsExactly(entry("Invalid key: must start with a-z 0-9", 2L));
+  }
+
+  @Test void tracestateReceived_earlyExit() {
+    CountingTraceContextMetrics metrics = new CountingTraceContextMetrics();
+    request.put("traceparent", traceparent);
+    request.put("tracestate", "b3=" + b3 + ",congo=t61rcWkgMzE");
+
+    TraceContextPropagation.newFactoryBuilder().tracestateEarlyExit(true).metrics(metrics).build()
+      .get().extractor(Map<String, String>::get).extract(request);
+
+    assertThat(metrics.extractedCount(Source.B3_ENTRY)).isEqualTo(1);
+    assertThat(metrics.tracestateLengthCounts()).containsExactly(0, 1, 0, 0, 0);
+    assertThat(metrics.tracestateEntryCounts()).containsOnly(0); // entries after ours are skipped
+  }
+
+  @Test void tracestateReceived_overMaxEntries() {
+    StringBuilder tracestate = new StringBuilder("b3=" + b3);
+    for (int i = 0; i < Tracestate.MAX_ENTRIES; i++) tracestate.append(",a").append(i).append("=1");
+    request.put("traceparent", traceparent);
+    request.put("tracestate", tracestate.toString());
+
+    extract();
+
+    assertThat(metrics.tracestateEntryCounts()[Tracestate.MAX_ENTRIES + 1]).isEqualTo(1);
+    assertThat(metrics.extractFailedCounts()).containsOnlyKeys("Invalid input: over 32 entries");
+  }
+
+  @Test void extractAll_countsEachRequest() {
+    request.put("traceparent", traceparent);
+    request.put("tracestate", "b3=" + b3);
+
+    ((TraceContextPropagation) propagation).<Map<String, String>>extractor(Map::get)
+      .extractAll(List.of(request, request), new TraceContextOrSamplingFlags[2]);
+
+    assertThat(metrics.extractedCount(Source.B3_ENTRY)).isEqualTo(2);
+  }
+
+  @Test void injected() {
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).build();
+
+    propagation.injector(Map<String, String>::put).inject(context, request);
+
+    assertThat(metrics.injectedCount()).isEqualTo(1);
+    assertThat(metrics.injectedTracestateLengthCounts()).containsExactly(1, 0, 0, 0, 0);
+  }
+
+  @Test void metrics_equals() {
+    assertThat(TraceContextPropagation.newFactoryBuilder().metrics(metrics).build())
+      .isEqualTo(TraceContextPropagation.newFactoryBuilder().metrics(metrics).build())
+      .isNotEqualTo(TraceContextPropagation.newFactoryBuilder()
+        .metrics(new CountingTraceContextMetrics()).build())
+      .isNotEqualTo(TraceContextPropagation.FACTORY);
+  }
+
+  TraceContextOrSamplingFlags extract() {
+    return propagation.extractor(Map<String, String>::get).extract(request);
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs against the multi-release jar, as the Java 11+ version of {@link FlightRecorderEvents} is
+ * not in the classes directory unit tests use.
+ */
+class FlightRecorderEventsIT {
+  static final String EXTRACT = "brave.propagation.tracecontext.TraceContextExtract";
+  static final String INJECT = "brave.propagation.tracecontext.TraceContextInject";
+
+  @TempDir Path tempDir;
+  Propagation<String> propagation = TraceContextPropagation.get();
+  Map<String, String> request = new LinkedHashMap<>();
+
+  String traceparent = "00-67891233abcdef012345678912345678-463ac35c9f6413ad-01";
+  String tracestate = "congo=t61rcWkgMzE,b3=67891233abcdef012345678912345678-463ac35c9f6413ad-1";
+
+  @Test void disabledByDefault() throws Exception {
+    request.put("traceparent", traceparent);
+    request.put("tracestate", tracestate);
+
+    assertThat(record(false, this::roundTrip)).isEmpty();
+  }
+
+  @Test void extractAndInject() throws Exception {
+    request.put("traceparent", traceparent);
+    request.put("tracestate", tracestate);
+
+    List<RecordedEvent> events = record(true, this::roundTrip);
+
+    assertThat(events).hasSize(2);
+    RecordedEvent extract = events.get(0);
+    assertThat(extract.getEventType().getName()).isEqualTo(EXTRACT);
+    assertThat(extract.getInt("traceparentLength")).isEqualTo(traceparent.length());
+    assertThat(extract.getInt("tracestateLength")).isEqualTo(tracestate.length());
+    assertThat(extract.getInt("tracestateEntryCount")).isEqualTo(2);
+    assertThat(extract.getString("source")).isEqualTo("B3_ENTRY");
+    assertThat(extract.getString("failureReason")).isNull();
+
+    RecordedEvent inject = events.get(1);
+    assertThat(inject.getEventType().getName()).isEqualTo(INJECT);
+    assertThat(inject.getInt("traceparentLength")).isEqualTo(traceparent.length());
+    assertThat(inject.getInt("tracestateLength")).isEqualTo(request.get("tracestate").length());
+  }
+
+  @Test void extract_failureReason() throws Exception {
+    request.put("traceparent", "00-67891233abcdef012345678912345678-463ac35c9f6413-01");
+    request.put("tracestate", "");
+
+    List<RecordedEvent> events =
+      record(true, () -> propagation.extractor(Map<String, String>::get).extract(request));
+
+    assertThat(events).hasSize(1);
+    assertThat(events.get(0).getString("source")).isNull();
+    assertThat(events.get(0).getString("failureReason"))
+      .isEqualTo("Invalid input: parent ID is too short");
+  }
+
+  void roundTrip() {
+    TraceContext context = propagation.extractor(Map<String, String>::get).extract(request)
+      .context();
+    propagation.injector(Map<String, String>::put).inject(context, request);
+  }
+
+  List<RecordedEvent> record(boolean enable, Runnable runnable) throws Exception {
+    Path file = tempDir.resolve("recording.jfr");
+    try (Recording recording = new Recording()) {
+      if (enable) {
+        recording.enable(EXTRACT);
+        recording.enable(INJECT);
+      }
+      recording.start();
+      runnable.run();
+      recording.stop();
+      recording.dump(file);
+    }
+    return RecordingFile.readAllEvents(file);
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockedStatic;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import static brave.propagation.tracecontext.TraceContextPropagation.logOrThrow;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class LogSummarizerTest {
+  @Mock Logger logger;
+  long now;
+  LogSummarizer summarizer = new LogSummarizer(10, TimeUnit.SECONDS) {
+    @Override long nanoTime() {
+      return now;
+    }
+  };
+
+  @Test void logsFirstOccurrence() {
+    summarizer.log(logger, "Invalid input: empty", null);
+    summarizer.log(logger, "Invalid input: empty", null);
+    summarizer.log(logger, "Invalid key: empty", null);
+
+    verify(logger).log(Level.FINE, "Invalid input: empty");
+    verify(logger).log(Level.FINE, "Invalid key: empty");
+    verifyNoMoreInteractions(logger);
+  }
+
+  @Test void logsFirstOccurrence_param() {
+    summarizer.log(logger, "Invalid input: {0} is too short", "trace ID");
+    summarizer.log(logger, "Invalid input: {0} is too short", "trace ID");
+    summarizer.log(logger, "Invalid input: {0} is too short", "parent ID");
+
+    ArgumentCaptor<LogRecord> records = ArgumentCaptor.forClass(LogRecord.class);
+    verify(logger, times(2)).log(records.capture());
+    assertThat(records.getAllValues())
+      .extracting(r -> r.getParameters()[0])
+      .containsExactly("trace ID", "parent ID");
+    verifyNoMoreInteractions(logger);
+  }
+
+  @Test void logsSummaryAfterInterval() {
+    summarizer.log(logger, "Invalid input: {0} is too short", "trace ID");
+    summarizer.log(logger, "Invalid input: {0} is too short", "trace ID");
+    summarizer.log(logger, "Invalid input: {0} is too short", "trace ID");
+    summarizer.log(logger, "Invalid key: empty", null);
+
+    now += TimeUnit.SECONDS.toNanos(10);
+    summarizer.log(logger, "Invalid value: empty", null);
+
+    verify(logger)
+      .log(Level.FINE, "Invalid input: trace ID is too short (2 more since last logged)");
+    verify(logger).log(Level.FINE, "Invalid value: empty");
+    verify(logger).log(Level.FINE, "Invalid key: empty");
+  }
+
+  @Test void logsFirstOccurrence_afterSummary() {
+    summarizer.log(logger, "Invalid key: empty", null);
+    summarizer.log(logger, "Invalid key: empty", null);
+
+    now += TimeUnit.SECONDS.toNanos(10);
+    summarizer.log(logger, "Invalid key: empty", null);
+    summarizer.log(logger, "Invalid key: empty", null);
+
+    verify(logger, times(2)).log(Level.FINE, "Invalid key: empty");
+    verify(logger).log(Level.FINE, "Invalid key: empty (1 more since last logged)");
+    verifyNoMoreInteractions(logger);
+  }
+
+  @Test void countsOccurrence_whenAnotherThreadAddedCounter() {
+    // Simulates a race, where another thread adds the counter after this one looked for it
+    ConcurrentMap<String, AtomicLong> byParam = new ConcurrentHashMap<String, AtomicLong>() {
+      @Override public AtomicLong get(Object key) {
+        return null;
+      }
+    };
+    byParam.put("", new AtomicLong());
+    summarizer.suppressed.put("Invalid key: empty", byParam);
+
+    summarizer.log(logger, "Invalid key: empty", null);
+
+    now += TimeUnit.SECONDS.toNanos(10);
+    summarizer.logSummaries(logger);
+
+    verify(logger).log(Level.FINE, "Invalid key: empty (1 more since last logged)");
+    verifyNoMoreInteractions(logger);
+  }
+
+  @Test void countsOccurrence_whenSummaryRemovedCounter() {
+    // Simulates a race, where a summary removes the counter after this thread read it
+    ConcurrentMap<String, AtomicLong> byParam = new ConcurrentHashMap<String, AtomicLong>() {
+      boolean summarized;
+
+      @Override public AtomicLong get(Object key) {
+        AtomicLong result = super.get(key);
+        if (!summarized) {
+          summarized = true;
+          summarizer.logSummaries(logger);
+        }
+        return result;
+      }
+    };
+    byParam.put("", new AtomicLong(1L));
+    summarizer.suppressed.put("Invalid key: empty", byParam);
+
+    summarizer.log(logger, "Invalid key: empty", null);
+
+    // The occurrence is the first after the summary, instead of counted into the removed counter
+    verify(logger).log(Level.FINE, "Invalid key: empty (1 more since last logged)");
+    verify(logger).log(Level.FINE, "Invalid key: empty");
+    verifyNoMoreInteractions(logger);
+  }
+
+  @Test void noSummaryBeforeInterval() {
+    summarizer.log(logger, "Invalid key: empty", null);
+    summarizer.log(logger, "Invalid key: empty", null);
+
+    now += TimeUnit.SECONDS.toNanos(10) - 1;
+    summarizer.log(logger, "Invalid key: empty", null);
+
+    verify(logger).log(Level.FINE, "Invalid key: empty");
+    verifyNoMoreInteractions(logger);
+  }
+
+  @Test void logOrThrow_usesSummarizer() {
+    when(logger.isLoggable(Level.FINE)).thenReturn(true);
+
+    try (MockedStatic<TraceContextPropagation.LoggerHolder> mb =
+           mockStatic(TraceContextPropagation.LoggerHolder.class)) {
+      mb.when(TraceContextPropagation.LoggerHolder::logger).thenReturn(logger);
+      mb.when(TraceContextPropagation.LoggerHolder::summarizer).thenReturn(summarizer);
+
+      assertThat(logOrThrow("hello", false)).isFalse();
+      assertThat(logOrThrow("hello", false)).isFalse();
+    }
+
+    verify(logger, times(2)).isLoggable(Level.FINE);
+    verify(logger).log(Level.FINE, "hello");
+    verifyNoMoreInteractions(logger);
+  }
+
+  @Test void intervalMustBePositive() {
+    assertThatThrownBy(() -> new LogSummarizer(0, TimeUnit.SECONDS))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("interval <= 0");
+  }
+}
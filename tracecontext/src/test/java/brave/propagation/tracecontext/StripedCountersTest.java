@@ -0,0 +1,45 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StripedCountersTest {
+  @Test void stripes() {
+    assertThat(StripedCounters.stripes(1)).isEqualTo(1);
+    assertThat(StripedCounters.stripes(6)).isEqualTo(8);
+    assertThat(StripedCounters.stripes(8)).isEqualTo(8);
+    assertThat(StripedCounters.stripes(1000)).isEqualTo(StripedCounters.MAX_STRIPES);
+  }
+
+  @Test void sumsEachStripe() throws InterruptedException {
+    StripedCounters counters = new StripedCounters(2, 4);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) { // more threads than stripes
+      threads.add(new Thread(() -> {
+        for (int j = 0; j < 1000; j++) counters.increment(1);
+      }));
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+
+    assertThat(counters.sum(0)).isZero();
+    assertThat(counters.sum(1)).isEqualTo(8000);
+    assertThat(counters.sums(0, 2)).containsExactly(0, 8000);
+  }
+}
@@ -14,12 +14,18 @@
 package brave.propagation.tracecontext;
 
 import brave.internal.Nullable;
+import brave.propagation.B3SingleFormat;
 import brave.propagation.Propagation;
 import brave.propagation.TraceContext;
 import brave.propagation.TraceContext.Extractor;
 import brave.propagation.TraceContext.Injector;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.propagation.tracecontext.TraceContextPropagation.BatchExtractor;
 import brave.propagation.tracecontext.TraceContextPropagation.LoggerHolder;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
@@ -32,7 +38,9 @@ import org.mockito.junit.jupiter.MockitoExtension;
 
 import static brave.internal.codec.HexCodec.lowerHexToUnsignedLong;
 import static brave.propagation.tracecontext.TraceContextPropagation.logOrThrow;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mockStatic;
 import static org.mockito.Mockito.verify;
@@ -45,6 +53,8 @@ class TraceContextPropagationTest {
   Propagation.Factory propagation = TraceContextPropagation.newFactoryBuilder().build();
   Injector<Map<String, String>> injector = propagation.get().injector(Map::put);
   Extractor<Map<String, String>> extractor = propagation.get().extractor(Map::get);
+  BatchExtractor<Map<String, String>> batchExtractor =
+    ((TraceContextPropagation) propagation.get()).extractor(Map::get);
 
   TraceContext sampledContext = TraceContext.newBuilder()
     .traceIdHigh(lowerHexToUnsignedLong("67891233abcdef01"))
@@ -77,6 +87,38 @@ class TraceContextPropagationTest {
       .containsEntry("tracestate", "b3=" + validB3Single + "," + otherState);
   }
 
+  /** Our entry copies IDs from traceparent, so check it against B3 for each optional field. */
+  @Test void injects_b3_sameAsB3SingleFormat() {
+    for (TraceContext context : Arrays.asList(
+      sampledContext,
+      sampledContext.toBuilder().traceIdHigh(0L).build(),
+      sampledContext.toBuilder().sampled(false).build(),
+      sampledContext.toBuilder().sampled(null).build(),
+      sampledContext.toBuilder().debug(true).build(),
+      sampledContext.toBuilder().parentId(lowerHexToUnsignedLong("b7ad6b7169203331")).build())) {
+      injector.inject(context, request);
+
+      assertThat(request)
+        .containsEntry("traceparent", TraceparentFormat.get().write(context))
+        .containsEntry("tracestate", "b3=" + B3SingleFormat.writeB3SingleFormat(context));
+    }
+  }
+
+  @Test void injects_tracestate_longerThanBuffer() {
+    StringBuilder otherState = new StringBuilder("congo=");
+    for (int i = 0; i < 100; i++) otherState.append('a');
+    for (int i = 0; i < 20; i++) otherState.append(",rojo").append(i).append("=00f067aa0ba902b7");
+    TraceContext withTracestate =
+      sampledContext.toBuilder().addExtra(new Tracestate(otherState.toString())).build();
+
+    TraceContextPropagation.newFactoryBuilder().tracestateMaxLength(2048).build().get()
+      .injector(Map<String, String>::put).inject(withTracestate, request);
+
+    assertThat(request)
+      .containsEntry("traceparent", validTraceparent)
+      .containsEntry("tracestate", "b3=" + validB3Single + "," + otherState);
+  }
+
   @Test void extracts_b3_when_no_other_tracestate() {
     request.put("traceparent", validTraceparent);
     request.put("tracestate", "b3=" + validB3Single);
@@ -105,6 +147,13 @@ class TraceContextPropagationTest {
     assertExtracted(extractor.extract(request).context(), "app_id=1," + otherState);
   }
 
+  @Test void extracts_b3_between_many_other_tracestate() {
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", "a=1,c=2,b3=" + validB3Single + ",d=3,e=4");
+
+    assertExtracted(extractor.extract(request).context(), "a=1,c=2,d=3,e=4");
+  }
+
   @Test void extracted_toString() {
     request.put("traceparent", validTraceparent);
     request.put("tracestate", "b3=" + validB3Single + "," + otherState);
@@ -117,6 +166,545 @@ class TraceContextPropagationTest {
         + "}");
   }
 
+  @Test void cacheLastTraceparent() {
+    Extractor<Map<String, String>> extractor = TraceContextPropagation.newFactoryBuilder()
+      .cacheLastTraceparent(true).build().get().extractor(Map::get);
+
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", otherState);
+
+    try {
+      assertExtracted(extractor.extract(request).context(), otherState);
+      assertThat(TraceparentFormat.LAST_TRACEPARENT.get().value).isSameAs(validTraceparent);
+      assertExtracted(extractor.extract(request).context(), otherState);
+    } finally {
+      TraceparentFormat.LAST_TRACEPARENT.remove();
+    }
+  }
+
+  @Test void cacheLastTraceparent_disabledByDefault() {
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", otherState);
+
+    assertExtracted(extractor.extract(request).context(), otherState);
+    assertThat(TraceparentFormat.LAST_TRACEPARENT.get()).isNull();
+  }
+
+  @Test void cacheLastTraceparent_equals() {
+    assertThat(TraceContextPropagation.newFactoryBuilder().cacheLastTraceparent(true).build())
+      .isEqualTo(TraceContextPropagation.newFactoryBuilder().cacheLastTraceparent(true).build())
+      .isNotEqualTo(TraceContextPropagation.FACTORY);
+    assertThat(TraceContextPropagation.newFactoryBuilder().cacheLastTraceparent(false).build())
+      .isSameAs(TraceContextPropagation.FACTORY);
+  }
+
+  @Test void lazyTracestate() {
+    Extractor<Map<String, String>> extractor = TraceContextPropagation.newFactoryBuilder()
+      .lazyTracestate(true).build().get().extractor(Map::get);
+
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", "app_id=1, b3=" + validB3Single + ", " + otherState);
+
+    TraceContext extracted = extractor.extract(request).context();
+    Tracestate tracestate = extracted.findExtra(Tracestate.class);
+    assertThat(tracestate.otherState).isNull(); // not yet parsed
+
+    assertExtracted(extracted, "app_id=1," + otherState);
+  }
+
+  @Test void lazyTracestate_noEntry() {
+    Extractor<Map<String, String>> extractor = TraceContextPropagation.newFactoryBuilder()
+      .lazyTracestate(true).build().get().extractor(Map::get);
+
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", otherState);
+
+    assertExtracted(extractor.extract(request).context(), otherState);
+  }
+
+  /** Unlike eager parsing, a malformed entry doesn't invalidate ours. It is dropped on inject. */
+  @Test void lazyTracestate_malformedOtherState() {
+    Extractor<Map<String, String>> extractor = TraceContextPropagation.newFactoryBuilder()
+      .lazyTracestate(true).build().get().extractor(Map::get);
+
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", "b3=" + validB3Single + ",Congo=t61rcWkgMzE");
+
+    TraceContext extracted = extractor.extract(request).context();
+    assertExtracted(extracted, null);
+    assertThat(this.extractor.extract(request).context()).isNull();
+
+    Map<String, String> outbound = new LinkedHashMap<>();
+    injector.inject(extracted, outbound);
+    assertThat(outbound)
+      .containsEntry("tracestate", "b3=" + validB3Single);
+  }
+
+  @Test void lazyTracestate_equals() {
+    assertThat(TraceContextPropagation.newFactoryBuilder().lazyTracestate(true).build())
+      .isEqualTo(TraceContextPropagation.newFactoryBuilder().lazyTracestate(true).build())
+      .isNotEqualTo(TraceContextPropagation.FACTORY);
+    assertThat(TraceContextPropagation.newFactoryBuilder().lazyTracestate(false).build())
+      .isSameAs(TraceContextPropagation.FACTORY);
+  }
+
+  /** Entries after ours are forwarded without validation. */
+  @Test void tracestateEarlyExit() {
+    Extractor<Map<String, String>> extractor = TraceContextPropagation.newFactoryBuilder()
+      .tracestateEarlyExit(true).build().get().extractor(Map::get);
+
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", "app_id=1, b3=" + validB3Single + ",Congo=t61rcWkgMzE");
+
+    assertExtracted(extractor.extract(request).context(), "app_id=1,Congo=t61rcWkgMzE");
+    assertThat(this.extractor.extract(request).context()).isNull();
+  }
+
+  @Test void tracestateEarlyExit_validatesBeforeOurEntry() {
+    Extractor<Map<String, String>> extractor = TraceContextPropagation.newFactoryBuilder()
+      .tracestateEarlyExit(true).build().get().extractor(Map::get);
+
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", "Congo=t61rcWkgMzE,b3=" + validB3Single);
+
+    assertThat(extractor.extract(request).context()).isNull();
+  }
+
+  @Test void tracestateEarlyExit_equals() {
+    assertThat(TraceContextPropagation.newFactoryBuilder().tracestateEarlyExit(true).build())
+      .isEqualTo(TraceContextPropagation.newFactoryBuilder().tracestateEarlyExit(true).build())
+      .isNotEqualTo(TraceContextPropagation.FACTORY);
+    assertThat(TraceContextPropagation.newFactoryBuilder().tracestateEarlyExit(false).build())
+      .isSameAs(TraceContextPropagation.FACTORY);
+  }
+
+  @Test void b3Fallback_prefersTraceContext() {
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", otherState);
+    request.put("b3", "1111111111111111-2222222222222222-1");
+
+    assertExtracted(b3FallbackExtractor().extract(request).context(), otherState);
+  }
+
+  @Test void b3Fallback_single() {
+    request.put("b3", validB3Single);
+
+    assertThat(b3FallbackExtractor().extract(request).context())
+      .isEqualTo(sampledContext);
+  }
+
+  @Test void b3Fallback_single_samplingOnly() {
+    request.put("b3", "0");
+
+    assertThat(b3FallbackExtractor().extract(request).sampled()).isFalse();
+  }
+
+  @Test void b3Fallback_malformedTraceparent() {
+    request.put("traceparent", "00-67891233abcdef012345678912345678-463ac35c9f6413ad");
+    request.put("tracestate", otherState);
+    request.put("b3", validB3Single);
+
+    assertThat(b3FallbackExtractor().extract(request).context())
+      .isEqualTo(sampledContext);
+  }
+
+  @Test void b3Fallback_missingTracestate() {
+    request.put("traceparent", validTraceparent);
+    request.put("b3", validB3Single);
+
+    assertThat(b3FallbackExtractor().extract(request).context())
+      .isEqualTo(sampledContext);
+  }
+
+  @Test void b3Fallback_multi() {
+    request.put("b3", "garbage");
+    request.put("X-B3-TraceId", "67891233abcdef012345678912345678");
+    request.put("X-B3-SpanId", "463ac35c9f6413ad");
+    request.put("X-B3-Sampled", "1");
+
+    assertThat(b3FallbackExtractor().extract(request).context())
+      .isEqualTo(sampledContext);
+  }
+
+  @Test void b3Fallback_readsEachHeaderOnce() {
+    List<String> keys = new ArrayList<>();
+    Extractor<Map<String, String>> extractor = TraceContextPropagation.newFactoryBuilder()
+      .b3Fallback(true).build().get().<Map<String, String>>extractor((request, key) -> {
+        keys.add(key);
+        return request.get(key);
+      });
+
+    request.put("traceparent", "garbage");
+    request.put("tracestate", otherState);
+    request.put("b3", "garbage");
+    extractor.extract(request);
+
+    assertThat(keys).doesNotHaveDuplicates()
+      .startsWith("traceparent", "tracestate", "b3", "X-B3-Sampled");
+  }
+
+  @Test void b3Fallback_disabledByDefault() {
+    request.put("b3", validB3Single);
+
+    assertThat(extractor.extract(request)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test void b3Fallback_keys() {
+    assertThat(TraceContextPropagation.newFactoryBuilder().b3Fallback(true).build().get().keys())
+      .containsExactly("traceparent", "tracestate", "b3", "X-B3-TraceId", "X-B3-SpanId",
+        "X-B3-ParentSpanId", "X-B3-Sampled", "X-B3-Flags");
+  }
+
+  @Test void b3Fallback_equals() {
+    assertThat(TraceContextPropagation.newFactoryBuilder().b3Fallback(true).build())
+      .isEqualTo(TraceContextPropagation.newFactoryBuilder().b3Fallback(true).build())
+      .isNotEqualTo(TraceContextPropagation.FACTORY);
+    assertThat(TraceContextPropagation.newFactoryBuilder().b3Fallback(false).build())
+      .isSameAs(TraceContextPropagation.FACTORY);
+  }
+
+  Extractor<Map<String, String>> b3FallbackExtractor() {
+    return TraceContextPropagation.newFactoryBuilder().b3Fallback(true).build().get()
+      .extractor(Map::get);
+  }
+
+  @Test void extractAll() {
+    Map<String, String> b3 = Map.of("traceparent", validTraceparent, "tracestate",
+      "b3=" + validB3Single + "," + otherState);
+    Map<String, String> other = Map.of("traceparent", validTraceparent, "tracestate", otherState);
+    Map<String, String> malformed = Map.of("traceparent", "garbage", "tracestate", otherState);
+    List<Map<String, String>> requests = List.of(b3, b3, other, malformed, Map.of(), b3, other);
+
+    TraceContextOrSamplingFlags[] results = new TraceContextOrSamplingFlags[requests.size()];
+    batchExtractor.extractAll(requests, results);
+
+    for (int i = 0; i < requests.size(); i++) {
+      assertThat(results[i]).hasToString(extractor.extract(requests.get(i)).toString());
+    }
+    assertThat(results[1]).isSameAs(results[0]); // consecutive equal headers share a result
+    assertThat(results[5]).isNotSameAs(results[0]);
+  }
+
+  @Test void extractAll_b3Fallback() {
+    List<Map<String, String>> requests =
+      List.of(Map.of("b3", validB3Single), Map.of("b3", validB3Single), Map.of());
+
+    TraceContextOrSamplingFlags[] results = new TraceContextOrSamplingFlags[requests.size()];
+    ((TraceContextPropagation) TraceContextPropagation.newFactoryBuilder().b3Fallback(true).build()
+      .get()).<Map<String, String>>extractor(Map::get).extractAll(requests, results);
+
+    assertThat(results[0].context()).isEqualTo(sampledContext);
+    assertThat(results[1].context()).isEqualTo(sampledContext);
+    assertThat(results[2]).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test void extractAll_resultsTooShort() {
+    assertThatThrownBy(
+      () -> batchExtractor.extractAll(List.of(request), new TraceContextOrSamplingFlags[0]))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("results.length < requests.size()");
+  }
+
+  @Test void extractAll_nullRequest() {
+    assertThatThrownBy(() -> batchExtractor.extractAll(Arrays.asList(request, null),
+      new TraceContextOrSamplingFlags[2]))
+      .isInstanceOf(NullPointerException.class)
+      .hasMessage("requests[1] == null");
+  }
+
+  @Test void tracestateMaxLength() {
+    Injector<Map<String, String>> injector = TraceContextPropagation.newFactoryBuilder()
+      .tracestateMaxLength(80).build().get().injector(Map::put);
+    TraceContext withTracestate = sampledContext.toBuilder()
+      .addExtra(new Tracestate(otherState + ",rojo=00f067aa0ba902b7")).build();
+
+    injector.inject(withTracestate, request);
+
+    assertThat(request) // rojo was dropped from the end
+      .containsEntry("tracestate", "b3=" + validB3Single + "," + otherState);
+  }
+
+  @Test void tracestateMaxLength_invalid() {
+    assertThatThrownBy(() -> TraceContextPropagation.newFactoryBuilder().tracestateMaxLength(0))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("tracestateMaxLength <= 0");
+  }
+
+  @Test void tracestateMaxLength_equals() {
+    assertThat(TraceContextPropagation.newFactoryBuilder().tracestateMaxLength(1024).build())
+      .isEqualTo(TraceContextPropagation.newFactoryBuilder().tracestateMaxLength(1024).build())
+      .isNotEqualTo(TraceContextPropagation.FACTORY);
+    assertThat(TraceContextPropagation.newFactoryBuilder().tracestateMaxLength(512).build())
+      .isSameAs(TraceContextPropagation.FACTORY);
+  }
+
+  @Test void tracestateCacheSize() {
+    CountingTraceContextMetrics metrics = new CountingTraceContextMetrics();
+    Propagation.Factory factory = TraceContextPropagation.newFactoryBuilder()
+      .tracestateCacheSize(10)
+      .metrics(metrics)
+      .build();
+    Extractor<Map<String, String>> extractor = factory.get().extractor(Map::get);
+
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", "app_id=1, b3=" + validB3Single + ", " + otherState);
+
+    assertExtracted(extractor.extract(request).context(), "app_id=1," + otherState);
+    assertExtracted(extractor.extract(request).context(), "app_id=1," + otherState);
+
+    assertThat(metrics.tracestateCacheMissCount()).isEqualTo(1);
+    assertThat(metrics.tracestateCacheHitCount()).isEqualTo(1);
+  }
+
+  @Test void tracestateCacheSize_disabledByDefault() {
+    assertThat(((TraceContextPropagation.Factory) propagation).tracestateCache).isNull();
+  }
+
+  @Test void tracestateCacheSize_invalid() {
+    assertThatThrownBy(() -> TraceContextPropagation.newFactoryBuilder().tracestateCacheSize(-1))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("tracestateCacheSize < 0");
+  }
+
+  @Test void tracestateCacheSize_equals() {
+    assertThat(TraceContextPropagation.newFactoryBuilder().tracestateCacheSize(10).build())
+      .isEqualTo(TraceContextPropagation.newFactoryBuilder().tracestateCacheSize(10).build())
+      .isNotEqualTo(TraceContextPropagation.FACTORY);
+    assertThat(TraceContextPropagation.newFactoryBuilder().tracestateCacheSize(0).build())
+      .isSameAs(TraceContextPropagation.FACTORY);
+  }
+
+  @Test void indexTracestateKey() {
+    Extractor<Map<String, String>> extractor = TraceContextPropagation.newFactoryBuilder()
+      .indexTracestateKey("rojo")
+      .indexTracestateKey("tenant1@vendor")
+      .build().get().extractor(Map::get);
+
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", "rojo=1,b3=" + validB3Single + "," + otherState);
+
+    Tracestate tracestate = extractor.extract(request).context().findExtra(Tracestate.class);
+    assertThat(tracestate.index).isNotNull();
+    assertThat(tracestate.get("rojo")).hasToString("1");
+    assertThat(tracestate.containsKey("tenant1@vendor")).isFalse();
+    assertThat(tracestate.get("congo")).hasToString("t61rcWkgMzE"); // not indexed
+    assertThat(tracestate.otherState()).hasToString("rojo=1," + otherState);
+  }
+
+  @Test void indexTracestateKey_lazy() {
+    Extractor<Map<String, String>> extractor = TraceContextPropagation.newFactoryBuilder()
+      .lazyTracestate(true)
+      .indexTracestateKey("rojo")
+      .build().get().extractor(Map::get);
+
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", "rojo=1,b3=" + validB3Single + "," + otherState);
+
+    Tracestate tracestate = extractor.extract(request).context().findExtra(Tracestate.class);
+    assertThat(tracestate.get("rojo")).hasToString("1");
+    assertThat(tracestate.otherState).isNull(); // read without parsing
+  }
+
+  @Test void indexTracestateKey_lazy_malformed() {
+    Extractor<Map<String, String>> extractor = TraceContextPropagation.newFactoryBuilder()
+      .lazyTracestate(true)
+      .indexTracestateKey("congo")
+      .build().get().extractor(Map::get);
+
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", "b3=" + validB3Single + ",congo=t61rcWkgMzE,C=2");
+
+    Tracestate tracestate = extractor.extract(request).context().findExtra(Tracestate.class);
+    assertThat(tracestate.index).isNull();
+    assertThat(tracestate.get("congo")).isNull(); // consistent with the other entries
+    assertThat(tracestate.size()).isZero();
+  }
+
+  @Test void indexTracestateKey_cache() {
+    Extractor<Map<String, String>> extractor = TraceContextPropagation.newFactoryBuilder()
+      .tracestateCacheSize(10)
+      .indexTracestateKey("rojo")
+      .build().get().extractor(Map::get);
+
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", "rojo=1,b3=" + validB3Single + "," + otherState);
+
+    for (int i = 0; i < 2; i++) { // miss, then hit
+      Tracestate tracestate = extractor.extract(request).context().findExtra(Tracestate.class);
+      assertThat(tracestate.index).isNotNull();
+      assertThat(tracestate.get("rojo")).hasToString("1");
+    }
+  }
+
+  @Test void indexTracestateKey_invalid() {
+    assertThatThrownBy(() -> TraceContextPropagation.newFactoryBuilder().indexTracestateKey("R"))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test void indexTracestateKey_sameAsTracestateKey() {
+    assertThatThrownBy(() -> TraceContextPropagation.newFactoryBuilder()
+      .indexTracestateKey("b3").build())
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("indexTracestateKey(b3) is the same as tracestateKey");
+  }
+
+  @Test void indexTracestateKey_equals() {
+    assertThat(TraceContextPropagation.newFactoryBuilder().indexTracestateKey("rojo").build())
+      .isEqualTo(TraceContextPropagation.newFactoryBuilder().indexTracestateKey("rojo").build())
+      .isNotEqualTo(TraceContextPropagation.newFactoryBuilder().indexTracestateKey("congo").build())
+      .isNotEqualTo(TraceContextPropagation.FACTORY);
+  }
+
+  @Test void tracestateKey_custom() {
+    Propagation<String> propagation =
+      TraceContextPropagation.newFactoryBuilder().tracestateKey("zipkin").build().get();
+
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", "zipkin=" + validB3Single + "," + otherState);
+
+    TraceContext extracted = propagation.extractor(Map<String, String>::get).extract(request)
+      .context();
+    assertExtracted(extracted, otherState);
+
+    request.clear();
+    propagation.injector(Map<String, String>::put).inject(extracted, request);
+    assertThat(request)
+      .containsEntry("tracestate", "zipkin=" + validB3Single + "," + otherState);
+  }
+
+  @Test void tracestateKey_custom_putRejectsKey() {
+    Propagation<String> propagation =
+      TraceContextPropagation.newFactoryBuilder().tracestateKey("zipkin").build().get();
+
+    for (String tracestate : Arrays.asList("zipkin=" + validB3Single, otherState)) {
+      request.put("traceparent", validTraceparent);
+      request.put("tracestate", tracestate);
+
+      Tracestate extracted = propagation.extractor(Map<String, String>::get).extract(request)
+        .context().findExtra(Tracestate.class);
+      assertThatThrownBy(() -> extracted.put("zipkin", "1"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("Invalid key: zipkin is written by the injector");
+      assertThat(extracted.put("b3", "1").get("b3")).hasToString("1"); // not our key
+    }
+  }
+
+  @Test void bytesInjector_sameAsInjector() {
+    Map<String, byte[]> bytes = new LinkedHashMap<>();
+    TraceContext withTracestate =
+      sampledContext.toBuilder().addExtra(new Tracestate(otherState)).build();
+
+    injector.inject(withTracestate, request);
+    ((TraceContextPropagation) propagation.get()).bytesInjector(Map<String, byte[]>::put)
+      .inject(withTracestate, bytes);
+
+    assertThat(bytes).hasSameSizeAs(request);
+    request.forEach((key, value) -> assertThat(bytes.get(key)).asString().isEqualTo(value));
+  }
+
+  @Test void bytesExtractor_sameAsExtractor() {
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", otherState + ",b3=" + validB3Single);
+    Map<String, byte[]> bytes = new LinkedHashMap<>();
+    request.forEach((key, value) -> bytes.put(key, value.getBytes(UTF_8)));
+
+    TraceContext extracted =
+      ((TraceContextPropagation) propagation.get()).bytesExtractor(Map<String, byte[]>::get)
+        .extract(bytes).context();
+    assertExtracted(extracted, otherState);
+  }
+
+  @Test void bytesExtractor_b3Fallback() {
+    Map<String, byte[]> bytes = new LinkedHashMap<>();
+    bytes.put("b3", validB3Single.getBytes(UTF_8));
+
+    TraceContextPropagation propagation = (TraceContextPropagation)
+      TraceContextPropagation.newFactoryBuilder().b3Fallback(true).build().get();
+    assertThat(propagation.bytesExtractor(Map<String, byte[]>::get).extract(bytes).context())
+      .isEqualTo(sampledContext);
+  }
+
+  @Test void bytesExtractor_onlyOurEntry() {
+    Map<String, byte[]> bytes = new LinkedHashMap<>();
+    bytes.put("traceparent", validTraceparent.getBytes(UTF_8));
+    bytes.put("tracestate", (" b3=" + validB3Single + " ,").getBytes(UTF_8));
+
+    TraceContext extracted = ((TraceContextPropagation) propagation.get())
+      .bytesExtractor(Map<String, byte[]>::get).extract(bytes).context();
+    assertExtracted(extracted, null);
+    assertThat(extracted.findExtra(Tracestate.class)).isSameAs(Tracestate.EMPTY);
+  }
+
+  /** The bytes are scanned in place, so other entries must be decoded, not a view of them. */
+  @Test void bytesExtractor_copiesOtherEntries() {
+    byte[] tracestate = ("b3=" + validB3Single + "," + otherState).getBytes(UTF_8);
+    Map<String, byte[]> bytes = new LinkedHashMap<>();
+    bytes.put("traceparent", validTraceparent.getBytes(UTF_8));
+    bytes.put("tracestate", tracestate);
+
+    TraceContext extracted = ((TraceContextPropagation) propagation.get())
+      .bytesExtractor(Map<String, byte[]>::get).extract(bytes).context();
+    Arrays.fill(tracestate, (byte) 'x');
+
+    assertExtracted(extracted, otherState);
+  }
+
+  @Test void charSequenceExtractor_sameAsExtractor() {
+    request.put("traceparent", validTraceparent);
+    request.put("tracestate", otherState + ",b3=" + validB3Single);
+    Map<String, CharSequence> chars = new LinkedHashMap<>();
+    request.forEach((key, value) -> chars.put(key, new StringBuilder(value)));
+
+    TraceContext extracted = ((TraceContextPropagation) propagation.get())
+      .charSequenceExtractor(Map<String, CharSequence>::get).extract(chars).context();
+    assertExtracted(extracted, otherState);
+  }
+
+  @Test void charSequenceExtractor_onlyOurEntry() {
+    Map<String, CharSequence> chars = new LinkedHashMap<>();
+    chars.put("traceparent", new StringBuilder(validTraceparent));
+    chars.put("tracestate", new StringBuilder(" b3=" + validB3Single + " ,"));
+
+    TraceContext extracted = ((TraceContextPropagation) propagation.get())
+      .charSequenceExtractor(Map<String, CharSequence>::get).extract(chars).context();
+    assertExtracted(extracted, null);
+    assertThat(extracted.findExtra(Tracestate.class)).isSameAs(Tracestate.EMPTY);
+  }
+
+  /** The carrier may reuse its characters, so other entries can't be a view of them. */
+  @Test void charSequenceExtractor_copiesOtherEntries() {
+    StringBuilder tracestate = new StringBuilder("b3=" + validB3Single + "," + otherState);
+    Map<String, CharSequence> chars = new LinkedHashMap<>();
+    chars.put("traceparent", validTraceparent);
+    chars.put("tracestate", tracestate);
+
+    TraceContext extracted = ((TraceContextPropagation) propagation.get())
+      .charSequenceExtractor(Map<String, CharSequence>::get).extract(chars).context();
+    tracestate.setLength(0);
+
+    assertExtracted(extracted, otherState);
+  }
+
+  @Test void charSequenceExtractor_malformed() {
+    Map<String, CharSequence> chars = new LinkedHashMap<>();
+    chars.put("traceparent", new StringBuilder(validTraceparent));
+    chars.put("tracestate", new StringBuilder("b3=" + validB3Single + ",C=1"));
+
+    assertThat(((TraceContextPropagation) propagation.get())
+      .charSequenceExtractor(Map<String, CharSequence>::get).extract(chars))
+      .isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test void charSequenceExtractor_b3Fallback() {
+    Map<String, CharSequence> chars = new LinkedHashMap<>();
+    chars.put("b3", new StringBuilder(validB3Single));
+
+    TraceContextPropagation propagation = (TraceContextPropagation)
+      TraceContextPropagation.newFactoryBuilder().b3Fallback(true).build().get();
+    assertThat(propagation.charSequenceExtractor(Map<String, CharSequence>::get).extract(chars)
+      .context()).isEqualTo(sampledContext);
+  }
+
   @Test void logOrThrow_logs() {
     when(logger.isLoggable(Level.FINE)).thenReturn(true);
 
@@ -176,9 +764,9 @@ class TraceContextPropagationTest {
       .usingRecursiveComparison().ignoringFields("extraList")
       .isEqualTo(sampledContext);
     if (otherState == null) {
-      assertThat(extracted.findExtra(Tracestate.class).otherState).isNull();
+      assertThat(extracted.findExtra(Tracestate.class).otherState()).isNull();
     } else {
-      assertThat(extracted.findExtra(Tracestate.class).otherState)
+      assertThat(extracted.findExtra(Tracestate.class).otherState())
         .hasToString(otherState);
     }
   }
@@ -14,8 +14,17 @@
 package brave.propagation.tracecontext;
 
 import brave.propagation.TraceContext;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
+import static brave.propagation.tracecontext.TraceparentFormat.lowerHexToUnsignedInt;
+import static brave.propagation.tracecontext.TraceparentFormat.parseFields;
+import static brave.propagation.tracecontext.TraceparentFormat.parseVersion00;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
@@ -28,6 +37,10 @@ class TraceparentFormatTest {
 
   TraceparentFormat traceparentFormat = new TraceparentFormat(true);
 
+  @AfterEach void clearLastTraceparent() {
+    TraceparentFormat.LAST_TRACEPARENT.remove();
+  }
+
   /** unsampled isn't the same as not-yet-sampled, but we have no better choice */
   @Test void write_notYetSampled_128() {
     TraceContext context = TraceContext.newBuilder()
@@ -103,6 +116,91 @@ class TraceparentFormatTest {
       .isEqualTo(new String(traceparentFormat.writeAsBytes(context), UTF_8));
   }
 
+  @Test void write_charArray_offset() {
+    TraceContext context = TraceContext.newBuilder()
+      .traceIdHigh(Long.parseUnsignedLong(traceIdHigh, 16))
+      .traceId(Long.parseUnsignedLong(traceId, 16))
+      .spanId(Long.parseUnsignedLong(spanId, 16))
+      .sampled(true).build();
+
+    char[] buffer = new char[2 + 55 + 2];
+    Arrays.fill(buffer, '?');
+    assertThat(traceparentFormat.write(context, buffer, 2)).isEqualTo(55);
+
+    assertThat(new String(buffer))
+      .isEqualTo("??" + traceparentFormat.write(context) + "??");
+  }
+
+  @Test void write_byteArray_offset() {
+    TraceContext context = TraceContext.newBuilder()
+      .traceIdHigh(Long.parseUnsignedLong(traceIdHigh, 16))
+      .traceId(Long.parseUnsignedLong(traceId, 16))
+      .spanId(Long.parseUnsignedLong(spanId, 16))
+      .sampled(true).build();
+
+    byte[] buffer = new byte[2 + 55 + 2];
+    Arrays.fill(buffer, (byte) '?');
+    assertThat(traceparentFormat.write(context, buffer, 2)).isEqualTo(55);
+
+    assertThat(new String(buffer, UTF_8))
+      .isEqualTo("??" + traceparentFormat.write(context) + "??");
+  }
+
+  @Test void write_arrays_tooSmall() {
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).build();
+
+    assertThatThrownBy(() -> traceparentFormat.write(context, new char[55], 1))
+      .isInstanceOf(IndexOutOfBoundsException.class)
+      .hasMessage("offset + 55 > result.length");
+    assertThatThrownBy(() -> traceparentFormat.write(context, new byte[55], -1))
+      .isInstanceOf(IndexOutOfBoundsException.class)
+      .hasMessage("offset < 0");
+  }
+
+  @Test void write_byteBuffer() {
+    TraceContext context = TraceContext.newBuilder()
+      .traceId(Long.parseUnsignedLong(traceId, 16))
+      .spanId(Long.parseUnsignedLong(spanId, 16))
+      .sampled(true).build();
+    byte[] expected = traceparentFormat.writeAsBytes(context);
+
+    for (ByteBuffer buffer : Arrays.asList(ByteBuffer.allocate(56), ByteBuffer.allocateDirect(56))) {
+      buffer.put((byte) '?');
+      assertThat(traceparentFormat.write(context, buffer)).isEqualTo(55);
+
+      assertThat(buffer.position()).isEqualTo(56);
+      buffer.flip().position(1);
+      byte[] written = new byte[55];
+      buffer.get(written);
+      assertThat(written).isEqualTo(expected);
+    }
+  }
+
+  @Test void write_byteBuffer_tooSmall() {
+    TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).build();
+    ByteBuffer buffer = ByteBuffer.allocate(55);
+    buffer.put((byte) '?');
+
+    assertThatThrownBy(() -> traceparentFormat.write(context, buffer))
+      .isInstanceOf(BufferOverflowException.class);
+    assertThat(buffer.position()).isEqualTo(1); // nothing was written
+  }
+
+  @Test void write_appendable() throws IOException {
+    TraceContext context = TraceContext.newBuilder()
+      .traceId(Long.parseUnsignedLong(traceId, 16))
+      .spanId(Long.parseUnsignedLong(spanId, 16))
+      .sampled(true).build();
+
+    StringBuilder builder = new StringBuilder("traceparent: ");
+    assertThat(traceparentFormat.write(context, builder)).isEqualTo(55);
+    assertThat(builder).hasToString("traceparent: " + traceparentFormat.write(context));
+
+    CharArrayWriter writer = new CharArrayWriter();
+    assertThat(traceparentFormat.write(context, writer)).isEqualTo(55);
+    assertThat(writer).hasToString(traceparentFormat.write(context));
+  }
+
   @Test void parse_sampled() {
     assertThat(traceparentFormat.parse("00-" + traceIdHigh + traceId + "-" + spanId + "-01"))
       .usingRecursiveComparison().isEqualTo(TraceContext.newBuilder()
@@ -202,6 +300,182 @@ class TraceparentFormatTest {
       .usingRecursiveComparison().isEqualTo(traceparentFormat.parse(encoded));
   }
 
+  @Test void parse_bytes() {
+    String encoded = "00-" + traceIdHigh + traceId + "-" + spanId + "-01";
+    byte[] bytes = encoded.getBytes(UTF_8);
+    assertThat(traceparentFormat.parse(bytes, 0, bytes.length))
+      .usingRecursiveComparison().isEqualTo(traceparentFormat.parse(encoded));
+  }
+
+  @Test void parse_bytes_ignoresBeforeAndAfter() {
+    String encoded = "00-" + traceIdHigh + traceId + "-" + spanId + "-01";
+    byte[] bytes = ("??" + encoded + "??").getBytes(UTF_8);
+    assertThat(traceparentFormat.parse(bytes, 2, 2 + encoded.length()))
+      .usingRecursiveComparison().isEqualTo(traceparentFormat.parse(encoded));
+  }
+
+  @Test void parse_bytes_malformed_notAscii() {
+    byte[] bytes = ("00-" + traceIdHigh + traceId + "-" + spanId + "-01").getBytes(UTF_8);
+    bytes[3 + 32 + 1 + 15] = (byte) 0xe3; // 'c' with the high bit set, so not ASCII
+    assertThatThrownBy(() -> traceparentFormat.parse(bytes, 0, bytes.length))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid input: only valid characters are lower-hex for parent ID");
+  }
+
+  @Test void parse_byteBuffer() {
+    String encoded = "00-" + traceIdHigh + traceId + "-" + spanId + "-01";
+    ByteBuffer buffer = ByteBuffer.wrap(("??" + encoded + "??").getBytes(UTF_8));
+    buffer.position(2).limit(2 + encoded.length());
+    ByteBuffer slice = buffer.slice(); // non-zero array offset
+
+    assertThat(traceparentFormat.parse(buffer))
+      .usingRecursiveComparison().isEqualTo(traceparentFormat.parse(encoded))
+      .isEqualTo(traceparentFormat.parse(slice));
+
+    // the position is unchanged
+    assertThat(buffer.position()).isEqualTo(2);
+  }
+
+  @Test void parse_byteBuffer_direct() {
+    String encoded = "00-" + traceIdHigh + traceId + "-" + spanId + "-01";
+    byte[] bytes = encoded.getBytes(UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes).flip();
+
+    assertThat(traceparentFormat.parse(buffer))
+      .usingRecursiveComparison().isEqualTo(traceparentFormat.parse(encoded));
+    assertThat(traceparentFormat.parse(buffer.asReadOnlyBuffer()))
+      .usingRecursiveComparison().isEqualTo(traceparentFormat.parse(encoded));
+  }
+
+  /** Input that isn't version 00 is decoded, so check the range read from a direct buffer. */
+  @Test void parse_byteBuffer_direct_laterVersion() {
+    String encoded = "01-" + traceIdHigh + traceId + "-" + spanId + "-01-what-the-future-will-be";
+    byte[] bytes = ("??" + encoded + "??").getBytes(UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes).flip();
+    buffer.position(2).limit(2 + encoded.length());
+
+    assertThat(traceparentFormat.parse(buffer))
+      .usingRecursiveComparison().isEqualTo(traceparentFormat.parse(encoded));
+    assertThat(buffer.position()).isEqualTo(2);
+  }
+
+  @Test void parse_byteBuffer_empty() {
+    assertThatThrownBy(() -> traceparentFormat.parse(ByteBuffer.allocate(0)))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid input: empty");
+  }
+
+  @Test void lowerHexToUnsignedInt_valid() {
+    for (String hex : new String[] {"00000000", "01234567", "89abcdef", "ffffffff", "fedcba98"}) {
+      assertThat(lowerHexToUnsignedInt(hex, 0))
+        .isEqualTo(Long.parseLong(hex, 16))
+        .isEqualTo(lowerHexToUnsignedInt(hex.getBytes(UTF_8), 0))
+        .isEqualTo(lowerHexToUnsignedInt(ByteBuffer.wrap(hex.getBytes(UTF_8)), 0));
+    }
+  }
+
+  /** Checks the characters just outside the valid ranges at every position. */
+  @Test void lowerHexToUnsignedInt_invalid() {
+    for (char invalid : new char[] {'/', ':', '`', 'g', 'A', 'F', '-', '\u0000', '\u007f'}) {
+      for (int i = 0; i < 8; i++) {
+        char[] chars = "01234567".toCharArray();
+        chars[i] = invalid;
+        String hex = new String(chars);
+        assertThat(lowerHexToUnsignedInt(hex, 0)).as(hex).isEqualTo(-1L);
+        assertThat(lowerHexToUnsignedInt(hex.getBytes(UTF_8), 0)).as(hex).isEqualTo(-1L);
+      }
+    }
+  }
+
+  @Test void lowerHexToUnsignedInt_notAscii() {
+    assertThat(lowerHexToUnsignedInt("0123456\u0137", 0)).isEqualTo(-1L); // low byte is '7'
+    assertThat(lowerHexToUnsignedInt(new byte[] {'0', '1', '2', '3', '4', '5', '6', (byte) 0xb7}, 0))
+      .isEqualTo(-1L);
+  }
+
+  /** The fixed-offset path must agree with the general one for valid version 00 input. */
+  @Test void parseVersion00_sameAsParseFields() {
+    for (String input : new String[] {
+      "00-" + traceIdHigh + traceId + "-" + spanId + "-01",
+      "00-" + traceIdHigh + traceId + "-" + spanId + "-00",
+      "00-0000000000000000" + traceId + "-" + spanId + "-01",
+      "00-" + traceIdHigh + "0000000000000000-" + spanId + "-01",
+      "00-ffffffffffffffffffffffffffffffff-ffffffffffffffff-01"
+    }) {
+      assertThat(parseVersion00(input, 0))
+        .usingRecursiveComparison().isEqualTo(parseFields(input, 0, input.length(), true));
+    }
+  }
+
+  /** The general path is responsible for logging why the input is invalid. */
+  @Test void parseVersion00_fallsBackOnInvalid() {
+    for (String input : new String[] {
+      "01-" + traceIdHigh + traceId + "-" + spanId + "-01", // later version
+      "ff-" + traceIdHigh + traceId + "-" + spanId + "-01",
+      "00_" + traceIdHigh + traceId + "-" + spanId + "-01",
+      "00-" + traceIdHigh + traceId + "_" + spanId + "-01",
+      "00-" + traceIdHigh + traceId + "-" + spanId + "_01",
+      "00-" + traceIdHigh + traceId + "-" + spanId + "-02",
+      "00-" + traceIdHigh + traceId + "-" + spanId + "-10",
+      "00-" + traceIdHigh + "ABCDEF7890123451-" + spanId + "-01",
+      "00-00000000000000000000000000000000-" + spanId + "-01",
+      "00-" + traceIdHigh + traceId + "-0000000000000000-01"
+    }) {
+      assertThat(input).hasSize(55);
+      assertThat(parseVersion00(input, 0)).as(input).isNull();
+    }
+  }
+
+  @Test void parseOrLast_sameInput() {
+    String input = "00-" + traceIdHigh + traceId + "-" + spanId + "-01";
+    TraceContext context = traceparentFormat.parseOrLast(input);
+
+    assertThat(traceparentFormat.parseOrLast(input)).isSameAs(context);
+    assertThat(traceparentFormat.parseOrLast(new String(input))).isSameAs(context);
+  }
+
+  @Test void parseOrLast_differentInput() {
+    String input = "00-" + traceIdHigh + traceId + "-" + spanId + "-01";
+    String other = "00-" + traceIdHigh + traceId + "-" + parentId + "-01";
+    TraceContext context = traceparentFormat.parseOrLast(input);
+
+    assertThat(traceparentFormat.parseOrLast(other))
+      .usingRecursiveComparison().isEqualTo(traceparentFormat.parse(other));
+    assertThat(traceparentFormat.parseOrLast(input))
+      .isNotSameAs(context) // as the last was replaced by other
+      .usingRecursiveComparison().isEqualTo(context);
+  }
+
+  @Test void parseOrLast_bytes_sameInput() {
+    byte[] input = ("00-" + traceIdHigh + traceId + "-" + spanId + "-01").getBytes(UTF_8);
+    TraceContext context = traceparentFormat.parseOrLast(input);
+
+    assertThat(traceparentFormat.parseOrLast(input.clone())).isSameAs(context);
+  }
+
+  @Test void parseOrLast_bytes_copiesInput() {
+    byte[] input = ("00-" + traceIdHigh + traceId + "-" + spanId + "-01").getBytes(UTF_8);
+    TraceContext context = traceparentFormat.parseOrLast(input);
+
+    byte[] other = ("00-" + traceIdHigh + traceId + "-" + parentId + "-01").getBytes(UTF_8);
+    System.arraycopy(other, 0, input, 0, other.length); // mutate the input in place
+
+    assertThat(traceparentFormat.parseOrLast(input))
+      .isNotSameAs(context)
+      .usingRecursiveComparison().isEqualTo(traceparentFormat.parse(other, 0, other.length));
+  }
+
+  @Test void parseOrLast_doesntRememberInvalid() {
+    TraceparentFormat lenient = new TraceparentFormat(false);
+    String input = "00-" + traceIdHigh + traceId + "-" + spanId + "-01";
+    TraceContext context = lenient.parseOrLast(input);
+
+    assertThat(lenient.parseOrLast("not-a-tumor")).isNull();
+    assertThat(lenient.parseOrLast(input)).isSameAs(context);
+  }
+
   @Test void parse_malformed() {
     assertThatThrownBy(() -> traceparentFormat.parse("not-a-tumor"))
       .isInstanceOf(IllegalArgumentException.class)
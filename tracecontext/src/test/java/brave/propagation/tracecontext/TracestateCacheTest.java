@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.propagation.tracecontext.TracestateCache.Scanned;
+import brave.propagation.tracecontext.TracestateCache.Segment;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TracestateCacheTest {
+  static final String B3 = "b3=67891233abcdef012345678912345678-463ac35c9f6413ad-1";
+
+  TracestateFormat tracestateFormat = TracestateFormat.get();
+  TracestateCache cache = new TracestateCache(64);
+  CountingTraceContextMetrics metrics = new CountingTraceContextMetrics();
+
+  @Test void scan_sameAsTracestateFormat() {
+    List<String> headers = Arrays.asList(
+      B3,
+      B3 + ",congo=t61rcWkgMzE",
+      "congo=t61rcWkgMzE," + B3,
+      "a=1, c=2 ,\t" + B3 + " , d=3,e=4",
+      "congo=t61rcWkgMzE",
+      "Congo=t61rcWkgMzE," + B3, // invalid other entry
+      "congo=t61rcWkgMzE,b3=1,C=2", // invalid entry after ours
+      "congo=t61rcWkgMzE,b3=😀", // invalid value of ours
+      B3 + ",congo=t61rcWkgMzE,b3=2", // duplicate entries for ours
+      B3 + ",b3=😀", // invalid duplicate entry for ours
+      ""
+    );
+
+    for (String header : headers) {
+      long expected = tracestateFormat.scan(header, false);
+      for (int i = 0; i < 2; i++) { // miss, then hit
+        assertThat(cache.scan(tracestateFormat, header, null, metrics).thisEntry)
+          .withFailMessage(header)
+          .isEqualTo(expected);
+      }
+    }
+  }
+
+  /** Our entry counts towards the limit, even though other entries are cached without it. */
+  @Test void scan_sameAsTracestateFormat_maxEntries() {
+    StringBuilder otherState = new StringBuilder("a0=1");
+    for (int i = 1; i < Tracestate.MAX_ENTRIES - 1; i++) {
+      otherState.append(",a").append(i).append("=1");
+    }
+    String maxOtherState = otherState + ",z=1"; // 32 entries, so valid alone
+    List<String> headers = Arrays.asList(
+      maxOtherState, // cached by its own key before it is looked up as other entries
+      B3 + "," + otherState, // 32 entries including ours
+      B3 + "," + maxOtherState // 33 entries including ours
+    );
+
+    for (String header : headers) {
+      long expected = tracestateFormat.scan(header, false);
+      for (int i = 0; i < 2; i++) { // miss, then hit
+        assertThat(cache.scan(tracestateFormat, header, null, metrics).thisEntry)
+          .withFailMessage(header)
+          .isEqualTo(expected);
+      }
+    }
+    assertThat(tracestateFormat.scan(headers.get(1), false))
+      .isNotEqualTo(TracestateFormat.MALFORMED);
+    assertThat(tracestateFormat.scan(headers.get(2), false))
+      .isEqualTo(TracestateFormat.MALFORMED);
+  }
+
+  @Test void scan_hitsWhenOurEntryChanges() {
+    cache.scan(tracestateFormat, "congo=t61rcWkgMzE,b3=1", null, metrics);
+    cache.scan(tracestateFormat, "congo=t61rcWkgMzE,b3=2", null, metrics);
+    cache.scan(tracestateFormat, "congo=t61rcWkgMzE", null, metrics);
+
+    assertThat(metrics.tracestateCacheMissCount()).isEqualTo(1);
+    assertThat(metrics.tracestateCacheHitCount()).isEqualTo(2);
+  }
+
+  @Test void scan_hitsRawHeader() {
+    String tracestate = "congo=t61rcWkgMzE," + B3;
+    long expected = cache.scan(tracestateFormat, tracestate, null, metrics).thisEntry;
+
+    assertThat(cache.scan(tracestateFormat, tracestate, null, metrics).thisEntry)
+      .isEqualTo(expected);
+    assertThat(metrics.tracestateCacheMissCount()).isEqualTo(1);
+    assertThat(metrics.tracestateCacheHitCount()).isEqualTo(1);
+    // both the raw header and the entries other than ours are cached
+    assertThat(cache.segments).flatExtracting(Segment::keySet)
+      .containsOnly(tracestate, "congo=t61rcWkgMzE");
+  }
+
+  @Test void scan_indexed() {
+    TracestateKeyMatcher matcher = TracestateKeyMatcher.create(Arrays.asList("congo"));
+    String tracestate = B3 + ",congo=t61rcWkgMzE";
+
+    Scanned miss = cache.scan(tracestateFormat, tracestate, matcher, metrics);
+    assertThat(miss.thisEntry).isEqualTo(tracestateFormat.scan(tracestate, false));
+    assertThat(miss.valueOffsets).containsExactly(tracestate.length() - 11, tracestate.length());
+    assertThat(cache.scan(tracestateFormat, tracestate, matcher, metrics)).isSameAs(miss);
+    // offsets are relative to the raw header, so the other entries aren't cached separately
+    assertThat(cache.segments).flatExtracting(Segment::keySet).containsOnly(tracestate);
+
+    Scanned malformed = cache.scan(tracestateFormat, "congo=t61rcWkgMzE,C=2", matcher, metrics);
+    assertThat(malformed.valueOffsets).isNull();
+  }
+
+  @Test void evictsLeastRecentlyUsed() {
+    TracestateCache cache = new TracestateCache(1);
+    for (String header : Arrays.asList("a=1", "b=2", "a=1")) {
+      cache.scan(tracestateFormat, header, null, metrics);
+    }
+
+    assertThat(metrics.tracestateCacheMissCount()).isEqualTo(3);
+    assertThat(cache.segments[0]).containsOnlyKeys("a=1");
+  }
+
+  @Test void segments() {
+    assertThat(new TracestateCache(1).segments).hasSize(1);
+    assertThat(new TracestateCache(100).segments).hasSize(16)
+      .allSatisfy(segment -> assertThat(segment.maxSize).isEqualTo(7));
+  }
+
+  @Test void maxSize_invalid() {
+    assertThatThrownBy(() -> new TracestateCache(0))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("maxSize <= 0");
+  }
+
+  @Test void key_matchesStringByContent() {
+    TracestateCache.Key key = new TracestateCache.Key(new StringBuilder("congo=t61rcWkgMzE"));
+    assertThat(key.hashCode()).isEqualTo("congo=t61rcWkgMzE".hashCode());
+    assertThat(key.equals("congo=t61rcWkgMzE")).isTrue();
+    assertThat(key.equals("congo=t61rcWkgMzF")).isFalse();
+    assertThat(key.equals("congo")).isFalse();
+  }
+}
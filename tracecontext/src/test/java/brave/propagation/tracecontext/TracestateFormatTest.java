@@ -145,6 +145,125 @@ class TracestateFormatTest {
       .hasMessage("Invalid value: valid characters are: ' ' to '~', except ',' and '='");
   }
 
+  @Test void scan() {
+    assertScan("b3=1", "1");
+    assertScan("congo=t61rcWkgMzE,b3=1", "1");
+    assertScan("a=1 ,\t b3=1-2 \t, c=3", "1-2");
+    assertScan("a=1,,b3=1,", "1");
+    assertScan("a= 1 a,b3= 1", " 1"); // leading and inner spaces are a part of the value
+    assertScan("b3=1,b3=2", "1"); // first wins
+  }
+
+  @Test void scan_charSequence() {
+    String tracestate = "congo=t61rcWkgMzE,b3=1";
+    assertThat(tracestateFormat.scan(new StringBuilder(tracestate), false))
+      .isEqualTo(tracestateFormat.scan(tracestate, false));
+  }
+
+  @Test void scan_noEntry() {
+    for (String tracestate : Arrays.asList("", ",", " \t", "congo=t61rcWkgMzE", "ab3=1", "b3x=1")) {
+      assertThat(tracestateFormat.scan(tracestate, false))
+        .withFailMessage(tracestate)
+        .isEqualTo(TracestateFormat.NO_ENTRY);
+    }
+  }
+
+  @Test void scan_malformed() {
+    TracestateFormat tracestateFormat = TracestateFormat.get(); // doesn't throw
+    for (String tracestate : Arrays.asList("b3", "a=1,b3", "b3 =1", "=1", "Congo=1", "a=", "a=\t1",
+      "a=1\t2", "a= ", "a=b=1", "a=😀", "a😀=1", "a=1, ,=2", "b3=1,C=2")) {
+      assertThat(tracestateFormat.scan(tracestate, false))
+        .withFailMessage(tracestate)
+        .isEqualTo(TracestateFormat.MALFORMED);
+    }
+  }
+
+  @Test void scan_malformed_logsWhy() {
+    assertThatThrownBy(() -> tracestateFormat.scan("a=1,b3", false))
+      .hasMessage("Invalid entry: missing '='");
+    assertThatThrownBy(() -> tracestateFormat.scan("a=1,B3=1", false))
+      .hasMessage("Invalid key: must start with a-z 0-9");
+    assertThatThrownBy(() -> tracestateFormat.scan("a=1,b😀=1", false))
+      .hasMessage("Invalid key: valid characters are: a-z 0-9 _ - * / @");
+    assertThatThrownBy(() -> tracestateFormat.scan("a=1,b3=\t", false))
+      .hasMessage("Invalid value: empty");
+    assertThatThrownBy(() -> tracestateFormat.scan("a=1,b3=1\t2", false))
+      .hasMessage("Invalid value: valid characters are: ' ' to '~', except ',' and '='");
+    assertThatThrownBy(() -> tracestateFormat.scan("a=" + LONGEST_VALUE + "1", false))
+      .hasMessage("Invalid value: too large");
+    assertThatThrownBy(() -> tracestateFormat.scan(LONGEST_BASIC_KEY + "a=1", false))
+      .hasMessage("Invalid key: too large");
+  }
+
+  @Test void scan_longest() {
+    String tracestate = LONGEST_TENANT_KEY + "=" + LONGEST_VALUE + ",b3=1";
+    assertThat(tracestateFormat.scan(tracestate, false)).isPositive();
+  }
+
+  @Test void scan_maxEntries() {
+    StringBuilder tracestate = new StringBuilder("b3=1");
+    for (int i = 1; i < Tracestate.MAX_ENTRIES; i++) tracestate.append(",a").append(i).append("=1");
+    assertThat(tracestateFormat.scan(tracestate, false)).isEqualTo(packedEntry(0, 4));
+
+    tracestate.append(",a=1");
+    assertThatThrownBy(() -> tracestateFormat.scan(tracestate, false))
+      .hasMessage("Invalid input: over 32 entries");
+    assertThat(TracestateFormat.get().scan(tracestate, false))
+      .isEqualTo(TracestateFormat.MALFORMED);
+    // empty entries are not counted
+    assertThat(TracestateFormat.get().scan(",," + tracestate.substring(5), false))
+      .isEqualTo(TracestateFormat.NO_ENTRY);
+  }
+
+  @Test void scan_earlyExit() {
+    String tracestate = "congo=t61rcWkgMzE,b3=1,C=2";
+    assertThat(TracestateFormat.get().scan(tracestate, false))
+      .isEqualTo(TracestateFormat.MALFORMED);
+    assertThat(TracestateFormat.get().scan(tracestate, true))
+      .isEqualTo(packedEntry(tracestate.indexOf("b3"), tracestate.indexOf(",C")));
+    // entries before ours are still validated
+    assertThat(TracestateFormat.get().scan("C=2,b3=1", true))
+      .isEqualTo(TracestateFormat.MALFORMED);
+  }
+
+  void assertScan(String tracestate, String value) {
+    long entry = tracestateFormat.scan(tracestate, false);
+    assertThat(entry).withFailMessage(tracestate).isPositive();
+    assertEntry(tracestate, entry, value);
+    assertThat(tracestateFormat.scan(tracestate, true)).isEqualTo(entry);
+  }
+
+  @Test void findThisEntry() {
+    assertFindThisEntry("b3=1", "1");
+    assertFindThisEntry("congo=t61rcWkgMzE,b3=1", "1");
+    assertFindThisEntry("a=1 ,\t b3=1-2 \t, c=3", "1-2");
+    assertFindThisEntry("a=1,,b3=1,", "1");
+    // other entries are not validated
+    assertFindThisEntry("Congo=😀,b3=1", "1");
+  }
+
+  @Test void findThisEntry_notFound() {
+    for (String tracestate : Arrays.asList("", ",", "b3", "b3 =1", "ab3=1", "b3x=1", "a=b3=1")) {
+      assertThat(tracestateFormat.findThisEntry(tracestate))
+        .withFailMessage(tracestate)
+        .isEqualTo(TracestateFormat.NO_ENTRY);
+    }
+  }
+
+  void assertFindThisEntry(String tracestate, String value) {
+    assertEntry(tracestate, tracestateFormat.findThisEntry(tracestate), value);
+  }
+
+  static void assertEntry(String tracestate, long entry, String value) {
+    int beginKey = Tracestate.beginEntry(entry);
+    assertThat(tracestate.substring(beginKey, beginKey + 2)).isEqualTo("b3");
+    assertThat(tracestate.substring(beginKey + 3, Tracestate.endEntry(entry))).isEqualTo(value);
+  }
+
+  static long packedEntry(int beginKey, int endValue) {
+    return (long) beginKey << 32 | endValue;
+  }
+
   AbstractBooleanAssert<?> assertThatValidateValue(String value) {
     return assertThat(tracestateFormat.validateValue(value, 0, value.length()));
   }
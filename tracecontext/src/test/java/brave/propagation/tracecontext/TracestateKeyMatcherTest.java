@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import brave.propagation.tracecontext.TracestateFormat.ScanResult;
+import brave.propagation.tracecontext.TracestateKeyMatcher.TracestateIndex;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TracestateKeyMatcherTest {
+  TracestateFormat tracestateFormat = TracestateFormat.get();
+  TracestateKeyMatcher matcher =
+    TracestateKeyMatcher.create(Arrays.asList("rojo", "tenant1@vendor", "tenant10@vendor"));
+
+  @Test void slot() {
+    assertThat(matcher.slot("rojo")).isZero();
+    assertThat(matcher.slot("tenant1@vendor")).isEqualTo(1);
+    assertThat(matcher.slot("tenant10@vendor")).isEqualTo(2);
+  }
+
+  @Test void slot_notRegistered() {
+    assertThat(matcher.slot("")).isEqualTo(-1);
+    assertThat(matcher.slot("roj")).isEqualTo(-1); // prefix
+    assertThat(matcher.slot("rojo2")).isEqualTo(-1);
+    assertThat(matcher.slot("tenant1@")).isEqualTo(-1);
+    assertThat(matcher.slot("ROJO")).isEqualTo(-1);
+    assertThat(matcher.slot("röjo")).isEqualTo(-1);
+  }
+
+  @Test void index() {
+    String header = "tenant10@vendor=a, rojo=00f067aa0ba902b7 ,b3=1,tenant1@vendor=b";
+    TracestateIndex index = index(header);
+
+    assertThat(value(index, 0)).isEqualTo("00f067aa0ba902b7");
+    assertThat(value(index, 1)).isEqualTo("b");
+    assertThat(value(index, 2)).isEqualTo("a");
+  }
+
+  @Test void index_absentKey() {
+    TracestateIndex index = index("rojo=1,congo=2");
+
+    assertThat(value(index, 0)).isEqualTo("1");
+    assertThat(value(index, 1)).isNull();
+    assertThat(value(index, 2)).isNull();
+  }
+
+  @Test void index_nullWhenNoKeys() {
+    assertThat(index("congo=2,roj=1,rojo2=1")).isNull();
+    assertThat(index("")).isNull();
+  }
+
+  @Test void index_firstEntryWins() {
+    TracestateIndex index = index("rojo=1,rojo=2");
+
+    assertThat(value(index, 0)).isEqualTo("1");
+  }
+
+  @Test void index_afterOurEntry_earlyExit() {
+    ScanResult found = new ScanResult(matcher);
+    String header = "b3=1,rojo=2";
+    tracestateFormat.scan(header, true, found);
+
+    assertThat(value(matcher.index(header, found.valueOffsets), 0)).isEqualTo("2");
+  }
+
+  @Test void scan_malformed() {
+    for (String header : Arrays.asList("rojo=a=b,rojo=2", "rojo,tenant1@vendor", "rojo=1,C=2")) {
+      assertThat(tracestateFormat.scan(header, false, new ScanResult(matcher)))
+        .withFailMessage(header)
+        .isEqualTo(TracestateFormat.MALFORMED);
+    }
+  }
+
+  TracestateIndex index(String header) {
+    ScanResult found = new ScanResult(matcher);
+    assertThat(tracestateFormat.scan(header, false, found))
+      .isNotEqualTo(TracestateFormat.MALFORMED);
+    return matcher.index(header, found.valueOffsets);
+  }
+
+  static String value(TracestateIndex index, int slot) {
+    int beginValue = index.valueOffsets[slot * 2];
+    if (beginValue == -1) return null;
+    return index.tracestateString.substring(beginValue, index.valueOffsets[slot * 2 + 1]);
+  }
+}
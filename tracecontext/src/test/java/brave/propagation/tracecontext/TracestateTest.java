@@ -0,0 +1,233 @@
+/*
+ * Copyright 2020-2024 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.propagation.tracecontext;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TracestateTest {
+  Tracestate tracestate = new Tracestate("rojo=00f067aa0ba902b7, congo=t61rcWkgMzE,\tapp@1=a b");
+
+  @Test void size() {
+    assertThat(Tracestate.empty().size()).isZero();
+    assertThat(tracestate.size()).isEqualTo(3);
+    assertThat(new Tracestate(" ,a=1,, b=2 ,").size()).isEqualTo(2);
+  }
+
+  @Test void forEach() {
+    assertThat(entries(tracestate))
+      .containsExactly("rojo=00f067aa0ba902b7", "congo=t61rcWkgMzE", "app@1=a b");
+  }
+
+  @Test void forEach_stops() {
+    List<String> entries = new ArrayList<>();
+    tracestate.forEach((target, buffer, beginKey, endKey, beginValue, endValue) -> {
+      target.add(buffer.subSequence(beginKey, endKey).toString());
+      return false;
+    }, entries);
+    assertThat(entries).containsExactly("rojo");
+  }
+
+  @Test void forEach_empty() {
+    assertThat(entries(Tracestate.empty())).isEmpty();
+  }
+
+  /** Lazy parsing means our entry is removed on first access */
+  @Test void forEach_unparsed() {
+    Tracestate unparsed = Tracestate.createUnparsed(TracestateFormat.get(),
+      "rojo=00f067aa0ba902b7,b3=67891233abcdef012345678912345678-463ac35c9f6413ad-1");
+    assertThat(entries(unparsed)).containsExactly("rojo=00f067aa0ba902b7");
+  }
+
+  @Test void get() {
+    assertThat(tracestate.get("rojo")).hasToString("00f067aa0ba902b7");
+    assertThat(tracestate.get("congo")).hasToString("t61rcWkgMzE");
+    assertThat(tracestate.get("app@1")).hasToString("a b");
+    assertThat(tracestate.get("app")).isNull();
+    assertThat(tracestate.get("rojo=")).isNull();
+    assertThat(Tracestate.empty().get("rojo")).isNull();
+  }
+
+  @Test void containsKey() {
+    assertThat(tracestate.containsKey("congo")).isTrue();
+    assertThat(tracestate.containsKey("cong")).isFalse();
+    assertThat(Tracestate.empty().containsKey("congo")).isFalse();
+  }
+
+  @Test void put_new() {
+    assertThat(tracestate.put("b", "2").otherState)
+      .hasToString("b=2,rojo=00f067aa0ba902b7, congo=t61rcWkgMzE,\tapp@1=a b");
+    assertThat(Tracestate.empty().put("b", "2").otherState)
+      .hasToString("b=2");
+  }
+
+  @Test void put_replacesAndMovesFirst() {
+    assertThat(tracestate.put("congo", "x").otherState)
+      .hasToString("congo=x,rojo=00f067aa0ba902b7, app@1=a b");
+    assertThat(tracestate.put("app@1", "x").otherState)
+      .hasToString("app@1=x,rojo=00f067aa0ba902b7, congo=t61rcWkgMzE");
+    assertThat(tracestate.put("rojo", "x").otherState)
+      .hasToString("rojo=x,congo=t61rcWkgMzE,\tapp@1=a b");
+  }
+
+  @Test void put_doesntChangeOriginal() {
+    tracestate.put("congo", "x");
+    assertThat(tracestate.get("congo")).hasToString("t61rcWkgMzE");
+  }
+
+  @Test void put_invalid() {
+    assertThatThrownBy(() -> tracestate.put("Congo", "x"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid key: must start with a-z 0-9");
+    assertThatThrownBy(() -> tracestate.put("congo", "x,y"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid value: valid characters are: ' ' to '~', except ',' and '='");
+  }
+
+  @Test void put_thisKey() {
+    assertThatThrownBy(() -> tracestate.put("b3", "1"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid key: b3 is written by the injector");
+    assertThatThrownBy(() -> Tracestate.empty().put("b3", "1"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid key: b3 is written by the injector");
+    // after changes, too
+    assertThatThrownBy(() -> tracestate.put("congo", "x").remove("rojo").put("b3", "1"))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessage("Invalid key: b3 is written by the injector");
+  }
+
+  @Test void remove() {
+    assertThat(tracestate.remove("rojo").otherState)
+      .hasToString("congo=t61rcWkgMzE,\tapp@1=a b");
+    assertThat(tracestate.remove("congo").otherState)
+      .hasToString("rojo=00f067aa0ba902b7, app@1=a b");
+    assertThat(tracestate.remove("app@1").otherState)
+      .hasToString("rojo=00f067aa0ba902b7, congo=t61rcWkgMzE");
+  }
+
+  @Test void remove_all() {
+    assertThat(tracestate.remove("rojo").remove("congo").remove("app@1"))
+      .isSameAs(Tracestate.EMPTY);
+  }
+
+  @Test void remove_absent() {
+    assertThat(tracestate.remove("app")).isSameAs(tracestate);
+    assertThat(Tracestate.empty().remove("app")).isSameAs(Tracestate.EMPTY);
+  }
+
+  @Test void stateString() {
+    assertThat(Tracestate.empty().stateString("b3", "1", 512))
+      .isEqualTo("b3=1");
+    assertThat(tracestate.stateString("b3", "1", 512))
+      .isEqualTo("b3=1,rojo=00f067aa0ba902b7,congo=t61rcWkgMzE,app@1=a b");
+  }
+
+  @Test void stateString_removesLargeEntriesFirst() {
+    String large = "large=" + repeat('a', 123); // 129 characters
+    Tracestate tracestate = new Tracestate("a=1," + large + ",b=2");
+
+    assertThat(tracestate.stateString("b3", "1", 4 + 4 + 130 + 4 - 1))
+      .isEqualTo("b3=1,a=1,b=2");
+  }
+
+  @Test void stateString_keepsLargeEntriesWhenUnderLimit() {
+    String large = "large=" + repeat('a', 123); // 129 characters
+    Tracestate tracestate = new Tracestate("a=1," + large + ",b=2");
+
+    assertThat(tracestate.stateString("b3", "1", 512))
+      .isEqualTo("b3=1,a=1," + large + ",b=2");
+  }
+
+  /** Whitespace between entries isn't rendered, so doesn't count towards the limit. */
+  @Test void stateString_keepsLargeEntriesWhenUnderLimitWithoutWhitespace() {
+    String large = "large=" + repeat('a', 123); // 129 characters
+    Tracestate tracestate = new Tracestate("a=1 ,\t" + large + " , b=2");
+
+    assertThat(tracestate.stateString("b3", "1", 4 + 4 + 130 + 4))
+      .isEqualTo("b3=1,a=1," + large + ",b=2");
+    assertThat(tracestate.renderedTail.truncated).isFalse();
+  }
+
+  @Test void stateString_removesFromTheEnd() {
+    assertThat(tracestate.stateString("b3", "1", 44))
+      .isEqualTo("b3=1,rojo=00f067aa0ba902b7,congo=t61rcWkgMzE");
+    assertThat(tracestate.stateString("b3", "1", 43))
+      .isEqualTo("b3=1,rojo=00f067aa0ba902b7");
+  }
+
+  @Test void stateString_keepsOurEntry() {
+    assertThat(tracestate.stateString("b3", "1", 1))
+      .isEqualTo("b3=1");
+  }
+
+  @Test void stateString_max32Entries() {
+    StringBuilder otherState = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      if (i > 0) otherState.append(',');
+      otherState.append('k').append(i).append("=v");
+    }
+
+    String result = new Tracestate(otherState).stateString("b3", "1", 512);
+    assertThat(result.split(",")).hasSize(32);
+    assertThat(result).startsWith("b3=1,k0=v,").endsWith(",k30=v");
+  }
+
+  @Test void stateString_reusesTail() {
+    String first = tracestate.stateString("b3", "1", 512);
+    Tracestate.RenderedTail tail = tracestate.renderedTail;
+    assertThat(tail.value).isEqualTo(",rojo=00f067aa0ba902b7,congo=t61rcWkgMzE,app@1=a b");
+
+    // Same or larger budget: nothing was truncated, so the tail is reused
+    assertThat(tracestate.stateString("b3", "2", 512)).isEqualTo("b3=2" + tail.value);
+    assertThat(tracestate.stateString("b3", "1", 1024)).isEqualTo(first);
+    assertThat(tracestate.renderedTail).isSameAs(tail);
+
+    // A smaller budget re-renders the tail
+    assertThat(tracestate.stateString("b3", "1", 43))
+      .isEqualTo("b3=1,rojo=00f067aa0ba902b7");
+    assertThat(tracestate.renderedTail).isNotSameAs(tail);
+  }
+
+  @Test void stateString_truncatedTailOnlyReusedForSameBudget() {
+    tracestate.stateString("b3", "1", 43);
+    Tracestate.RenderedTail tail = tracestate.renderedTail;
+
+    assertThat(tracestate.stateString("b3", "2", 43)).isEqualTo("b3=2,rojo=00f067aa0ba902b7");
+    assertThat(tracestate.renderedTail).isSameAs(tail);
+
+    assertThat(tracestate.stateString("b3", "1", 44))
+      .isEqualTo("b3=1,rojo=00f067aa0ba902b7,congo=t61rcWkgMzE");
+    assertThat(tracestate.renderedTail).isNotSameAs(tail);
+  }
+
+  static String repeat(char c, int count) {
+    char[] chars = new char[count];
+    java.util.Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  static List<String> entries(Tracestate tracestate) {
+    List<String> entries = new ArrayList<>();
+    tracestate.forEach((target, buffer, beginKey, endKey, beginValue, endValue) -> {
+      target.add(buffer.subSequence(beginKey, endKey) + "=" + buffer.subSequence(beginValue, endValue));
+      return true;
+    }, entries);
+    return entries;
+  }
+}